@@ -5,22 +5,48 @@
  */
 package com.github.danieln.dnssdjava;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
  * Automatically unregister services on JVM shutdown.
  * This class uses a shutdown hook to unregister services when
  * the application exits. Services may not be unregistered on a
- * JMV crash or other abnormal termination.
+ * JMV crash or other abnormal termination, but if the DNS server supports
+ * update leases their records are removed when the lease runs out.
+ * <p>
+ * The services are unregistered in a few batches sent at the same time, so that
+ * the application exits quickly. If the DNS server doesn't respond within the
+ * timeout the application exits anyway, and the services that weren't unregistered
+ * are reported on standard error. The timeout is given by the "dnssd.unregister.timeout"
+ * system property in seconds, or by {@link #setTimeout(long, TimeUnit)}.
  * @author Daniel Nilsson
  */
 public class AutomaticUnregister {
 
+	/**
+	 * The default time to wait for the services to be unregistered, in seconds.
+	 */
+	private static final long DEFAULT_TIMEOUT = 10;
+
+	/**
+	 * The number of services unregistered in each batch.
+	 */
+	private static final int BATCH_SIZE = 32;
+
 	private final DnsSDRegistrator registrator;
 	private final Set<ServiceName> serviceNames = new HashSet<ServiceName>();
 	private final Thread shutdownHook;
+	private long timeout = TimeUnit.SECONDS.toMillis(Long.getLong("dnssd.unregister.timeout", DEFAULT_TIMEOUT));
 
 	/**
 	 * Create a new AutomaticUnregister object.
@@ -58,18 +84,52 @@ public class AutomaticUnregister {
 		}
 	}
 	
+	/**
+	 * Set the maximum time to wait for the services to be unregistered on shutdown.
+	 * @param timeout the maximum time to wait.
+	 * @param unit the unit of the timeout argument.
+	 */
+	public synchronized void setTimeout(long timeout, TimeUnit unit) {
+		this.timeout = unit.toMillis(timeout);
+	}
+
 	/**
 	 * Called from the shutdown hook to unregister the services.
 	 */
 	private synchronized void unregisterAll() {
 		// because this code runs in a shutdown hook it doesn't use the logger
-		for (ServiceName serviceName : serviceNames) {
-			try {
-				registrator.unregisterService(serviceName);
-			} catch (DnsSDException e) {
-				System.err.printf("WARNING: Failed to unregister service %s: %s\n", serviceName, e.getMessage());
+		List<ServiceName> names = new ArrayList<ServiceName>(serviceNames);
+		List<List<ServiceName>> batches = new ArrayList<List<ServiceName>>();
+		List<CompletableFuture<Map<ServiceName, Boolean>>> futures = new ArrayList<CompletableFuture<Map<ServiceName, Boolean>>>();
+		for (int i = 0; i < names.size(); i += BATCH_SIZE) {
+			List<ServiceName> batch = names.subList(i, Math.min(i + BATCH_SIZE, names.size()));
+			batches.add(batch);
+			futures.add(registrator.unregisterServicesAsync(batch));
+		}
+		CompletableFuture<?>[] done = new CompletableFuture<?>[futures.size()];
+		for (int i = 0; i < done.length; i++) {
+			// Wait for all batches, even if some fail
+			done[i] = futures.get(i).handle((result, ex) -> null);
+		}
+		try {
+			CompletableFuture.allOf(done).get(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException e) {
+			// The batches that didn't finish are reported below
+		}
+		Set<ServiceName> failed = new LinkedHashSet<ServiceName>();
+		for (int i = 0; i < futures.size(); i++) {
+			CompletableFuture<Map<ServiceName, Boolean>> future = futures.get(i);
+			if (!future.isDone() || future.isCompletedExceptionally()) {
+				future.cancel(true);
+				failed.addAll(batches.get(i));
 			}
 		}
+		if (!failed.isEmpty()) {
+			System.err.printf("WARNING: Failed to unregister %d of %d services within %d ms: %s\n",
+					failed.size(), names.size(), timeout, failed);
+		}
 	}
 	
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+/**
+ * Statistics about a cache of DNS-SD results.
+ * The counters are cumulative from the creation of the cache.
+ * <p>
+ * Instances of the class are immutable.
+ * @author Daniel Nilsson
+ */
+public class CacheStatistics {
+
+	private final long hitCount;
+	private final long missCount;
+	private final long staleHitCount;
+	private final long evictionCount;
+	private final int size;
+	private final int weight;
+	private final int maxWeight;
+
+	/**
+	 * Create a new CacheStatistics.
+	 * @param hitCount the number of lookups that found a value.
+	 * @param missCount the number of lookups that didn't find a value.
+	 * @param staleHitCount the number of misses answered with an expired value.
+	 * @param evictionCount the number of values removed to make room for others.
+	 * @param size the number of cached values.
+	 * @param weight the total weight of the cached values.
+	 * @param maxWeight the maximum total weight.
+	 */
+	CacheStatistics(long hitCount, long missCount, long staleHitCount, long evictionCount, int size, int weight, int maxWeight) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.staleHitCount = staleHitCount;
+		this.evictionCount = evictionCount;
+		this.size = size;
+		this.weight = weight;
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Get the number of lookups that were answered from the cache.
+	 * @return the hit count.
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Get the number of lookups that had to go to the DNS server.
+	 * @return the miss count.
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Get the number of misses that were answered with an expired value
+	 * while a fresh one was fetched in the background.
+	 * Only non-zero if the browser serves stale results.
+	 * @return the stale hit count.
+	 */
+	public long getStaleHitCount() {
+		return staleHitCount;
+	}
+
+	/**
+	 * Get the fraction of lookups that were answered from the cache.
+	 * @return the hit rate, between 0.0 and 1.0.
+	 */
+	public double getHitRate() {
+		long total = hitCount + missCount;
+		return (total == 0) ? 0.0 : (double) hitCount / total;
+	}
+
+	/**
+	 * Get the number of values that were removed before they expired,
+	 * to make room for other values.
+	 * @return the eviction count.
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Get the number of values in the cache.
+	 * @return the number of values.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Get the number of DNS records the cached values were made from.
+	 * @return the total weight.
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Get the maximum number of DNS records the cached values may be made from.
+	 * @return the maximum weight.
+	 */
+	public int getMaxWeight() {
+		return maxWeight;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("hits=%d misses=%d stale=%d hitrate=%.2f evictions=%d size=%d weight=%d/%d",
+				hitCount, missCount, staleHitCount, getHitRate(), evictionCount, size, weight, maxWeight);
+	}
+
+}
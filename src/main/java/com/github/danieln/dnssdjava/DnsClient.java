@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+
+/**
+ * Internal helper class for sending DNS queries.
+ * Unlike {@link Lookup} the complete response message is returned, including the
+ * additional section where a DNS-SD aware server puts the records that the client
+ * is likely to ask for next (RFC 6763 chapter 12).
+ * @author Daniel Nilsson
+ */
+class DnsClient {
+
+	private static final Logger logger = Logger.getLogger(DnsClient.class.getName());
+
+	/**
+	 * The default maximum time in seconds to cache a negative response.
+	 */
+	private static final long DEFAULT_MAX_NEGATIVE_TTL = 900;
+
+	/**
+	 * The maximum number of CNAME records to follow in a response.
+	 */
+	private static final int MAX_CNAMES = 8;
+
+	private final ExecutorService executor;
+	private final long maxNegativeTtl;
+	private List<InetSocketAddress> servers;
+	private long serversGeneration;
+
+	/**
+	 * Create a new DnsClient.
+	 * The maximum time to cache negative responses is taken from the
+	 * "dnssd.cache.negativettl" system property (seconds).
+	 * @param executor the executor used to handle the responses.
+	 */
+	DnsClient(ExecutorService executor) {
+		this.executor = executor;
+		this.maxNegativeTtl = Long.getLong("dnssd.cache.negativettl", DEFAULT_MAX_NEGATIVE_TTL);
+	}
+
+	/**
+	 * Send a query to the DNS servers given by {@link DnsTransport#getDefaultServers()},
+	 * read again when the network configuration changes.
+	 * @param name the name to query.
+	 * @param type the record type to query.
+	 * @return a future for the response message, fails with an IOException if there is no
+	 *         response or the server failed to answer (SERVFAIL, REFUSED etc).
+	 */
+	CompletableFuture<Message> query(Name name, int type) {
+		Message query = Message.newQuery(Record.newRecord(name, type, DClass.IN));
+		CompletableFuture<Message> request;
+		try {
+			request = DnsTransport.getInstance().send(query, getServers(), null);
+		} catch (IOException ex) {
+			request = new CompletableFuture<Message>();
+			request.completeExceptionally(ex);
+		}
+		// Handle the response on the executor, not on the transport thread
+		CompletableFuture<Message> result = request.thenApplyAsync(response -> {
+			int rcode = response.getRcode();
+			if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+				logger.log(Level.FINE, "Query for {0} failed: {1}", new Object[] { name, Rcode.string(rcode) });
+				throw new CompletionException(new IOException("Query for " + name + " failed: " + Rcode.string(rcode)));
+			}
+			return response;
+		}, executor);
+		DnsSDFutures.cancelOnCancel(result, Collections.singletonList(request));
+		return result;
+	}
+
+	private synchronized List<InetSocketAddress> getServers() throws IOException {
+		long generation = NetworkWatcher.getInstance().getGeneration();
+		if (servers == null || serversGeneration != generation) {
+			servers = DnsTransport.getDefaultServers();
+			serversGeneration = generation;
+		}
+		return servers;
+	}
+
+	/**
+	 * Get the records with the given name and type from a section of a message.
+	 * If the name is an alias the CNAME records in the section are followed.
+	 * @param message the message.
+	 * @param section the message section, one of the {@link org.xbill.DNS.Section} constants.
+	 * @param name the record name.
+	 * @param type the record type.
+	 * @return an array of records, empty if none were found.
+	 */
+	static Record[] getRecords(Message message, int section, Name name, int type) {
+		Record[] records = message.getSectionArray(section);
+		for (int i = 0; i < MAX_CNAMES; i++) {
+			List<Record> results = new ArrayList<Record>();
+			Name alias = null;
+			for (Record record : records) {
+				if (record.getName().equals(name)) {
+					if (record.getType() == type) {
+						results.add(record);
+					} else if (record instanceof CNAMERecord) {
+						alias = ((CNAMERecord) record).getTarget();
+					}
+				}
+			}
+			if (!results.isEmpty() || alias == null) {
+				return results.toArray(new Record[results.size()]);
+			}
+			name = alias;
+		}
+		return new Record[0];
+	}
+
+	/**
+	 * Check if a section of a message has a CNAME record for a name.
+	 */
+	private static boolean isAlias(Message message, int section, Name name) {
+		for (Record record : message.getSectionArray(section)) {
+			if (record instanceof CNAMERecord && record.getName().equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check if a response says that the queried records don't exist,
+	 * either because the name doesn't exist (NXDOMAIN) or because there are
+	 * no records of the type (NODATA). An answer with only a CNAME record
+	 * whose target wasn't followed by the server is not negative, it says
+	 * nothing about the target.
+	 * @param response the response message.
+	 * @param name the queried name.
+	 * @param type the queried record type.
+	 * @return true if the response is a negative answer.
+	 */
+	static boolean isNegative(Message response, Name name, int type) {
+		int rcode = response.getRcode();
+		if (rcode == Rcode.NXDOMAIN) {
+			return true;
+		}
+		return rcode == Rcode.NOERROR && getRecords(response, Section.ANSWER, name, type).length == 0
+				&& !isAlias(response, Section.ANSWER, name);
+	}
+
+	/**
+	 * Get the time a negative response may be cached.
+	 * According to RFC 2308 chapter 5 this is the smaller of the TTL and
+	 * the minimum field of the SOA record in the authority section.
+	 * @param response the negative response message.
+	 * @return the time to live in seconds, capped to the configured maximum,
+	 *         or zero if the response has no SOA record and mustn't be cached.
+	 */
+	long getNegativeTimeToLive(Message response) {
+		for (Record record : response.getSectionArray(Section.AUTHORITY)) {
+			if (record instanceof SOARecord) {
+				SOARecord soa = (SOARecord) record;
+				return Math.min(Math.min(soa.getTTL(), soa.getMinimum()), maxNegativeTtl);
+			}
+		}
+		return 0;
+	}
+
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.DNSOutput;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+/**
+ * Internal class for DNS Long-Lived Queries (RFC 8764) over UDP.
+ * <p>
+ * Each subscription is set up with a two-way handshake, where the client echoes the
+ * LLQ ID chosen by the server, and is then refreshed before its lease runs out.
+ * The server sends the changes to the records as events, which are acknowledged.
+ * The LLQ metadata is carried in an EDNS0 option, encoded by hand since dnsjava
+ * doesn't know about it.
+ * @author Daniel Nilsson
+ */
+class DnsLlqClient implements RecordNotifier {
+
+	private static final Logger logger = Logger.getLogger(DnsLlqClient.class.getName());
+
+	/**
+	 * The EDNS0 option code of LLQ.
+	 */
+	private static final int LLQ = 1;
+
+	/**
+	 * The LLQ version implemented.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The LLQ opcodes.
+	 */
+	private static final int SETUP = 1;
+	private static final int REFRESH = 2;
+	private static final int EVENT = 3;
+
+	/**
+	 * The TTL of an event record that deletes the record.
+	 */
+	private static final long DELETE_TTL = 0xFFFFFFFFL;
+
+	/**
+	 * The lease to ask for, in seconds.
+	 */
+	private static final long LEASE = 3600;
+
+	/**
+	 * The shortest lease accepted, in seconds.
+	 */
+	private static final long MIN_LEASE = 60;
+
+	/**
+	 * The time to wait for a response before sending the request again, in milliseconds.
+	 */
+	private static final long TIMEOUT = 2000;
+
+	/**
+	 * The number of times a request is sent before giving up.
+	 */
+	private static final int TRIES = 3;
+
+	private final InetSocketAddress address;
+	private final DatagramSocket socket;
+	private final Map<Integer, CompletableFuture<Message>> requests = new HashMap<Integer, CompletableFuture<Message>>();
+	private final Map<Long, LongLivedQuery> queries = new HashMap<Long, LongLivedQuery>();
+	private final List<Runnable> closeListeners = new ArrayList<Runnable>();
+	private boolean closed;
+
+	private DnsLlqClient(InetSocketAddress address, DatagramSocket socket) {
+		this.address = address;
+		this.socket = socket;
+	}
+
+	/**
+	 * Create a client for an LLQ server.
+	 * Whether the server really supports LLQ isn't known until the first setup.
+	 * @param address the address of the server.
+	 * @return the new client.
+	 * @throws IOException if no socket could be created.
+	 */
+	static DnsLlqClient open(InetSocketAddress address) throws IOException {
+		DatagramSocket socket = new DatagramSocket();
+		socket.connect(address);
+		DnsLlqClient client = new DnsLlqClient(address, socket);
+		Thread reader = new Thread(client::readLoop, "dnssd-llq-" + address);
+		reader.setDaemon(true);
+		reader.start();
+		return client;
+	}
+
+	@Override
+	public CompletableFuture<Subscription> subscribe(Name name, int type, Runnable listener) {
+		LongLivedQuery query = new LongLivedQuery(name, type, listener);
+		CompletableFuture<Subscription> result = exchange(query.newMessage(SETUP, 0, LEASE)).thenCompose(challenge -> {
+			Metadata metadata = getMetadata(challenge, query);
+			synchronized (this) {
+				query.id = metadata.id;
+				query.lease = metadata.lease;
+				queries.put(query.id, query);
+			}
+			// Echo the LLQ ID to prove that the request came from this address
+			return exchange(query.newMessage(SETUP, metadata.id, metadata.lease));
+		}).thenApply(ack -> {
+			getMetadata(ack, query);
+			query.setRecords(DnsClient.getRecords(ack, Section.ANSWER, name, type));
+			query.scheduleRefresh();
+			return query;
+		});
+		result.whenComplete((subscription, ex) -> {
+			if (ex != null) {
+				synchronized (this) {
+					queries.remove(query.id);
+				}
+			} else {
+				listener.run();
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public void addCloseListener(Runnable listener) {
+		synchronized (this) {
+			if (!closed) {
+				closeListeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	@Override
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Close the client. The queries are abandoned, outstanding requests fail,
+	 * and the close listeners are called.
+	 */
+	void close() {
+		List<CompletableFuture<Message>> pending;
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			for (LongLivedQuery query : queries.values()) {
+				query.cancelRefresh();
+			}
+			pending = new ArrayList<CompletableFuture<Message>>(requests.values());
+			listeners = new ArrayList<Runnable>(closeListeners);
+			requests.clear();
+			queries.clear();
+			closeListeners.clear();
+		}
+		socket.close();
+		logger.log(Level.FINE, "Closed LLQ client for {0}", address);
+		for (CompletableFuture<Message> request : pending) {
+			request.completeExceptionally(new IOException("LLQ client closed"));
+		}
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Send a request and wait for the response, sending it again if there is no response in time.
+	 * @param message the request.
+	 * @return a future for the response, fails with an IOException if there is no response.
+	 */
+	private CompletableFuture<Message> exchange(Message message) {
+		CompletableFuture<Message> result = new CompletableFuture<Message>();
+		int id = message.getHeader().getID();
+		synchronized (this) {
+			if (closed) {
+				result.completeExceptionally(new IOException("LLQ client closed"));
+				return result;
+			}
+			requests.put(id, result);
+		}
+		byte[] bytes = message.toWire();
+		send(bytes, id, result, TRIES);
+		return result;
+	}
+
+	private void send(byte[] bytes, int id, CompletableFuture<Message> result, int tries) {
+		if (result.isDone()) {
+			return;
+		}
+		if (tries == 0) {
+			synchronized (this) {
+				requests.remove(id, result);
+			}
+			result.completeExceptionally(new SocketTimeoutException("No response from " + address));
+			return;
+		}
+		send(bytes);
+		DnsSDExecutors.scheduler().schedule(() -> send(bytes, id, result, tries - 1), TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	private void send(byte[] bytes) {
+		try {
+			socket.send(new DatagramPacket(bytes, bytes.length));
+		} catch (IOException ex) {
+			logger.log(Level.FINE, "Failed to send to " + address, ex);
+		}
+	}
+
+	private void readLoop() {
+		byte[] buffer = new byte[Message.MAXLENGTH];
+		try {
+			while (true) {
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				socket.receive(packet);
+				byte[] bytes = new byte[packet.getLength()];
+				System.arraycopy(packet.getData(), packet.getOffset(), bytes, 0, bytes.length);
+				try {
+					handle(new Message(bytes));
+				} catch (IOException ex) {
+					logger.log(Level.FINE, "Invalid message from " + address, ex);
+				}
+			}
+		} catch (IOException ex) {
+			if (!isClosed()) {
+				logger.log(Level.FINE, "LLQ client for " + address + " failed", ex);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	private void handle(Message message) throws IOException {
+		Metadata metadata = Metadata.fromMessage(message);
+		if (metadata != null && metadata.opcode == EVENT) {
+			event(message, metadata);
+			return;
+		}
+		if (!message.getHeader().getFlag(Flags.QR)) {
+			return;
+		}
+		CompletableFuture<Message> request;
+		synchronized (this) {
+			request = requests.remove(message.getHeader().getID());
+		}
+		if (request != null) {
+			request.complete(message);
+		}
+	}
+
+	/**
+	 * Apply the records of an event to the query and acknowledge it (RFC 8764 section 6).
+	 * Events are sent again until acknowledged, applying one twice does no harm.
+	 */
+	private void event(Message message, Metadata metadata) {
+		LongLivedQuery query;
+		synchronized (this) {
+			query = queries.get(metadata.id);
+		}
+		Message ack = new Message(message.getHeader().getID());
+		ack.getHeader().setFlag(Flags.QR);
+		if (message.getQuestion() != null) {
+			ack.addRecord(message.getQuestion(), Section.QUESTION);
+		}
+		ack.addRecord(newOPT(metadata), Section.ADDITIONAL);
+		send(ack.toWire());
+		if (query == null) {
+			return;
+		}
+		boolean changed = false;
+		for (Record record : message.getSectionArray(Section.ANSWER)) {
+			if (record.getName().equals(query.name) && record.getType() == query.type) {
+				if (record.getTTL() == DELETE_TTL) {
+					changed |= query.remove(record);
+				} else {
+					changed |= query.add(record);
+				}
+			}
+		}
+		if (changed) {
+			try {
+				query.listener.run();
+			} catch (RuntimeException ex) {
+				logger.log(Level.WARNING, "LLQ listener failed", ex);
+			}
+		}
+	}
+
+	/**
+	 * Get the LLQ metadata of a response, checking that it is valid.
+	 * @return the metadata.
+	 * @throws CompletionException wrapping an IOException if the response is an error.
+	 */
+	private Metadata getMetadata(Message response, LongLivedQuery query) {
+		Metadata metadata = Metadata.fromMessage(response);
+		if (response.getRcode() != Rcode.NOERROR || metadata == null) {
+			// A server without LLQ answers the query like any other
+			throw new CompletionException(new IOException("LLQ not supported by " + address + " for " + query));
+		}
+		if (metadata.error != 0) {
+			throw new CompletionException(new IOException("LLQ for " + query + " refused, error " + metadata.error));
+		}
+		if (metadata.lease < MIN_LEASE) {
+			metadata.lease = MIN_LEASE;
+		}
+		return metadata;
+	}
+
+	private static OPTRecord newOPT(Metadata metadata) {
+		DNSOutput data = new DNSOutput();
+		data.writeU16(VERSION);
+		data.writeU16(metadata.opcode);
+		data.writeU16(metadata.error);
+		data.writeU32(metadata.id >>> 32);
+		data.writeU32(metadata.id & 0xFFFFFFFFL);
+		data.writeU32(metadata.lease);
+		List<OPTRecord.Option> options = Collections.singletonList(new OPTRecord.Option(LLQ, data.toByteArray()));
+		return new OPTRecord(Message.MAXLENGTH, 0, 0, 0, options);
+	}
+
+	/**
+	 * The contents of the LLQ option.
+	 */
+	private static class Metadata {
+
+		int opcode;
+		int error;
+		long id;
+		long lease;
+
+		Metadata(int opcode, int error, long id, long lease) {
+			this.opcode = opcode;
+			this.error = error;
+			this.id = id;
+			this.lease = lease;
+		}
+
+		/**
+		 * Get the LLQ option of a message.
+		 * @return the metadata, or null if the message has no valid LLQ option.
+		 */
+		static Metadata fromMessage(Message message) {
+			OPTRecord opt = message.getOPT();
+			if (opt == null) {
+				return null;
+			}
+			for (Object data : opt.getOptions(LLQ)) {
+				try {
+					DNSInput in = new DNSInput((byte[]) data);     // Safe cast
+					if (in.readU16() != VERSION) {
+						continue;
+					}
+					int opcode = in.readU16();
+					int error = in.readU16();
+					long id = (in.readU32() << 32) | in.readU32();
+					return new Metadata(opcode, error, id, in.readU32());
+				} catch (IOException ex) {
+					logger.log(Level.FINE, "Invalid LLQ option", ex);
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A long-lived query, holding the current records.
+	 */
+	private class LongLivedQuery implements Subscription {
+
+		private final Name name;
+		private final int type;
+		private final Runnable listener;
+		private final Set<Record> records = new LinkedHashSet<Record>();
+		private long id;
+		private long lease;
+		private ScheduledFuture<?> refresh;
+
+		LongLivedQuery(Name name, int type, Runnable listener) {
+			this.name = name;
+			this.type = type;
+			this.listener = listener;
+		}
+
+		@Override
+		public synchronized Record[] getRecords() {
+			return records.toArray(new Record[records.size()]);
+		}
+
+		@Override
+		public RecordNotifier getNotifier() {
+			return DnsLlqClient.this;
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (DnsLlqClient.this) {
+				if (queries.remove(id) == null) {
+					return;
+				}
+				cancelRefresh();
+			}
+			// A refresh with zero lease ends the query, no need to wait for the response
+			send(newMessage(REFRESH, id, 0).toWire());
+		}
+
+		Message newMessage(int opcode, long id, long lease) {
+			Message message = Message.newQuery(Record.newRecord(name, type, DClass.IN));
+			message.addRecord(newOPT(new Metadata(opcode, 0, id, lease)), Section.ADDITIONAL);
+			return message;
+		}
+
+		/**
+		 * Refresh the query when 80% of the lease has passed.
+		 * If the refresh fails the server is considered lost.
+		 */
+		void scheduleRefresh() {
+			synchronized (DnsLlqClient.this) {
+				if (closed || !queries.containsKey(id)) {
+					return;
+				}
+				refresh = DnsSDExecutors.scheduler().schedule(() -> {
+					exchange(newMessage(REFRESH, id, LEASE)).whenComplete((response, ex) -> {
+						if (ex == null) {
+							Metadata metadata = Metadata.fromMessage(response);
+							if (metadata != null && metadata.error == 0) {
+								lease = Math.max(MIN_LEASE, metadata.lease);
+								scheduleRefresh();
+								return;
+							}
+						}
+						logger.log(Level.INFO, "Failed to refresh LLQ for {0}", this);
+						close();
+					});
+				}, lease * 800, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		void cancelRefresh() {
+			if (refresh != null) {
+				refresh.cancel(false);
+			}
+		}
+
+		synchronized void setRecords(Record[] records) {
+			this.records.clear();
+			Collections.addAll(this.records, records);
+		}
+
+		synchronized boolean add(Record record) {
+			// Replace any equal record, the TTL may have changed
+			records.remove(record);
+			records.add(record);
+			return true;
+		}
+
+		synchronized boolean remove(Record record) {
+			return records.remove(record);
+		}
+
+		@Override
+		public String toString() {
+			return name + "/" + org.xbill.DNS.Type.string(type);
+		}
+	}
+
+}
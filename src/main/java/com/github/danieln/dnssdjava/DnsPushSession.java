@@ -0,0 +1,530 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.DNSOutput;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Internal class for a DNS Push Notification session (RFC 8765).
+ * <p>
+ * The session is a DNS Stateful Operations (DSO, RFC 8490) session over a long-lived
+ * TCP connection, normally protected by TLS. The client subscribes to record sets and
+ * the server pushes every change to them, so no periodic queries are needed.
+ * The TLVs are encoded by hand since dnsjava doesn't know about DSO.
+ * @author Daniel Nilsson
+ */
+class DnsPushSession implements RecordNotifier {
+
+	private static final Logger logger = Logger.getLogger(DnsPushSession.class.getName());
+
+	/**
+	 * The DSO opcode.
+	 */
+	private static final int DSO = 6;
+
+	/**
+	 * The DSO TLV types used.
+	 */
+	private static final int KEEPALIVE = 0x0001;
+	private static final int RETRY_DELAY = 0x0002;
+	private static final int SUBSCRIBE = 0x0040;
+	private static final int PUSH = 0x0041;
+	private static final int UNSUBSCRIBE = 0x0042;
+
+	/**
+	 * The "DSO-TYPE not implemented" response code.
+	 */
+	private static final int DSOTYPENI = 11;
+
+	/**
+	 * The TTL of a pushed record that deletes the record.
+	 */
+	private static final long DELETE_TTL = 0xFFFFFFFFL;
+
+	/**
+	 * The TTL of a pushed record that deletes the record set of its type,
+	 * or all record sets of the name if the type is ANY.
+	 */
+	private static final long DELETE_ALL_TTL = 0xFFFFFFFEL;
+
+	/**
+	 * The keepalive interval to use if the server doesn't say, in milliseconds.
+	 */
+	private static final long DEFAULT_KEEPALIVE_INTERVAL = 15000;
+
+	/**
+	 * The shortest keepalive interval allowed, in milliseconds.
+	 */
+	private static final long MIN_KEEPALIVE_INTERVAL = 10000;
+
+	/**
+	 * How long to wait for the session to be established, in milliseconds.
+	 */
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	private final InetSocketAddress address;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final Map<Integer, CompletableFuture<Response>> requests = new HashMap<Integer, CompletableFuture<Response>>();
+	private final Map<Integer, PushSubscription> subscriptions = new HashMap<Integer, PushSubscription>();
+	private final List<Runnable> closeListeners = new ArrayList<Runnable>();
+	private int nextId = new Random().nextInt(0xffff);
+	private ScheduledFuture<?> keepalive;
+	private boolean closed;
+
+	private DnsPushSession(InetSocketAddress address, Socket socket) throws IOException {
+		this.address = address;
+		this.socket = socket;
+		this.in = new DataInputStream(socket.getInputStream());
+		this.out = new DataOutputStream(socket.getOutputStream());
+	}
+
+	/**
+	 * Connect to a DNS Push server and establish a DSO session.
+	 * With TLS the certificate of the server must be valid for the host name
+	 * of the address, the target of the SRV record it was found by.
+	 * @param address the address of the server, with its host name.
+	 * @param tls true to use TLS, as required by RFC 8765.
+	 * @return the new session.
+	 * @throws IOException if the server can't be reached or doesn't support DSO.
+	 */
+	static DnsPushSession open(InetSocketAddress address, boolean tls) throws IOException {
+		Socket socket = tls ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+		DnsPushSession session = null;
+		try {
+			if (tls) {
+				SSLSocket sslSocket = (SSLSocket) socket;
+				SSLParameters params = sslSocket.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				params.setServerNames(Collections.<SNIServerName>singletonList(new SNIHostName(address.getHostString())));
+				sslSocket.setSSLParameters(params);
+			}
+			socket.connect(address, CONNECT_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			if (tls) {
+				// Fail here if the certificate doesn't match, not in the reader thread
+				((SSLSocket) socket).startHandshake();
+			}
+			session = new DnsPushSession(address, socket);
+			Thread reader = new Thread(session::readLoop, "dnssd-push-" + address);
+			reader.setDaemon(true);
+			reader.start();
+			// Establish the session with a keepalive request, servers without DSO refuse it
+			DNSOutput tlv = new DNSOutput();
+			tlv.writeU32(0);
+			tlv.writeU32(DEFAULT_KEEPALIVE_INTERVAL);
+			Response response = session.request(KEEPALIVE, tlv.toByteArray()).get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+			if (response.rcode != Rcode.NOERROR) {
+				throw new IOException("DSO not supported by " + address + ": " + Rcode.string(response.rcode));
+			}
+			session.startKeepalive(response);
+			logger.log(Level.INFO, "Established DNS Push session with {0}", address);
+			return session;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", ex);
+		} catch (ExecutionException ex) {
+			throw new IOException("Failed to establish DNS Push session with " + address, ex.getCause());
+		} catch (TimeoutException ex) {
+			throw new IOException("Timeout establishing DNS Push session with " + address, ex);
+		} finally {
+			if (session == null || session.keepalive == null) {
+				if (session != null) {
+					session.close();
+				} else {
+					socket.close();
+				}
+			}
+		}
+	}
+
+	@Override
+	public CompletableFuture<Subscription> subscribe(Name name, int type, Runnable listener) {
+		DNSOutput tlv = new DNSOutput();
+		name.toWire(tlv, null);
+		tlv.writeU16(type);
+		tlv.writeU16(DClass.IN);
+		PushSubscription subscription;
+		CompletableFuture<Response> request;
+		synchronized (this) {
+			if (closed) {
+				CompletableFuture<Subscription> result = new CompletableFuture<Subscription>();
+				result.completeExceptionally(new IOException("DNS Push session closed"));
+				return result;
+			}
+			// Register the subscription first, the pushed records may follow the response immediately
+			int id = newId();
+			subscription = new PushSubscription(id, name, type, listener);
+			subscriptions.put(id, subscription);
+			request = send(id, SUBSCRIBE, tlv.toByteArray());
+		}
+		// The server first pushes the current records, then every change
+		return request.<Subscription>thenApply(response -> {
+			if (response.rcode != Rcode.NOERROR) {
+				synchronized (this) {
+					subscriptions.remove(subscription.id);
+				}
+				throw new CompletionException(new IOException("Subscription for " + name + "/" + Type.string(type)
+						+ " refused: " + Rcode.string(response.rcode)));
+			}
+			return subscription;
+		});
+	}
+
+	@Override
+	public void addCloseListener(Runnable listener) {
+		synchronized (this) {
+			if (!closed) {
+				closeListeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	@Override
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Close the session. Outstanding requests fail, and the close listeners are called.
+	 */
+	void close() {
+		List<CompletableFuture<Response>> pending;
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (keepalive != null) {
+				keepalive.cancel(false);
+			}
+			pending = new ArrayList<CompletableFuture<Response>>(requests.values());
+			listeners = new ArrayList<Runnable>(closeListeners);
+			requests.clear();
+			subscriptions.clear();
+			closeListeners.clear();
+		}
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			logger.log(Level.FINE, "Failed to close DNS Push session", ex);
+		}
+		logger.log(Level.FINE, "Closed DNS Push session with {0}", address);
+		for (CompletableFuture<Response> request : pending) {
+			request.completeExceptionally(new IOException("DNS Push session closed"));
+		}
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	private void startKeepalive(Response response) {
+		long interval = DEFAULT_KEEPALIVE_INTERVAL;
+		if (response.tlvType == KEEPALIVE && response.tlvData.length >= 8) {
+			DNSInput tlv = new DNSInput(response.tlvData);
+			try {
+				tlv.readU32();      // Inactivity timeout, doesn't apply while subscribed
+				interval = Math.max(MIN_KEEPALIVE_INTERVAL, tlv.readU32());
+			} catch (IOException ex) {
+				logger.log(Level.FINE, "Invalid keepalive TLV", ex);
+			}
+		}
+		synchronized (this) {
+			keepalive = DnsSDExecutors.scheduler().scheduleWithFixedDelay(() -> {
+				DNSOutput tlv = new DNSOutput();
+				tlv.writeU32(0);
+				tlv.writeU32(DEFAULT_KEEPALIVE_INTERVAL);
+				request(KEEPALIVE, tlv.toByteArray());
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized CompletableFuture<Response> request(int tlvType, byte[] tlvData) {
+		if (closed) {
+			CompletableFuture<Response> result = new CompletableFuture<Response>();
+			result.completeExceptionally(new IOException("DNS Push session closed"));
+			return result;
+		}
+		return send(newId(), tlvType, tlvData);
+	}
+
+	private void unsubscribe(PushSubscription subscription) {
+		synchronized (this) {
+			if (closed || subscriptions.remove(subscription.id) == null) {
+				return;
+			}
+			DNSOutput tlv = new DNSOutput();
+			tlv.writeU16(subscription.id);
+			send(0, UNSUBSCRIBE, tlv.toByteArray());
+		}
+	}
+
+	/**
+	 * Allocate a message ID, skipping zero which is used for unidirectional messages.
+	 */
+	private int newId() {
+		do {
+			nextId = (nextId + 1) & 0xffff;
+		} while (nextId == 0 || requests.containsKey(nextId) || subscriptions.containsKey(nextId));
+		return nextId;
+	}
+
+	/**
+	 * Send a DSO message with a single TLV. Must hold the lock.
+	 * @param id the message ID, zero for a unidirectional message.
+	 * @return a future for the response, or null for a unidirectional message.
+	 */
+	private CompletableFuture<Response> send(int id, int tlvType, byte[] tlvData) {
+		Header header = new Header(id);
+		header.setOpcode(DSO);
+		DNSOutput message = new DNSOutput();
+		message.writeByteArray(header.toWire());
+		message.writeU16(tlvType);
+		message.writeU16(tlvData.length);
+		message.writeByteArray(tlvData);
+		CompletableFuture<Response> result = null;
+		if (id != 0) {
+			result = new CompletableFuture<Response>();
+			requests.put(id, result);
+		}
+		write(message.toByteArray());
+		return result;
+	}
+
+	/**
+	 * Write a message with its length prefix in one go. Must hold the lock.
+	 */
+	private void write(byte[] message) {
+		byte[] bytes = new byte[message.length + 2];
+		bytes[0] = (byte) (message.length >>> 8);
+		bytes[1] = (byte) message.length;
+		System.arraycopy(message, 0, bytes, 2, message.length);
+		try {
+			out.write(bytes);
+			out.flush();
+		} catch (IOException ex) {
+			logger.log(Level.FINE, "Failed to send to " + address, ex);
+			DnsSDExecutors.scheduler().execute(this::close);
+		}
+	}
+
+	private void readLoop() {
+		try {
+			while (true) {
+				byte[] bytes = new byte[in.readUnsignedShort()];
+				in.readFully(bytes);
+				handle(bytes);
+			}
+		} catch (IOException ex) {
+			if (!isClosed()) {
+				logger.log(Level.FINE, "DNS Push session with " + address + " failed", ex);
+			}
+		} finally {
+			close();
+		}
+	}
+
+	private void handle(byte[] bytes) throws IOException {
+		DNSInput message = new DNSInput(bytes);
+		Header header = new Header(message.readByteArray(Header.LENGTH));
+		if (header.getOpcode() != DSO) {
+			logger.log(Level.FINE, "Ignoring non-DSO message from {0}", address);
+			return;
+		}
+		int tlvType = -1;
+		byte[] tlvData = new byte[0];
+		if (message.remaining() >= 4) {
+			tlvType = message.readU16();
+			tlvData = message.readByteArray(message.readU16());
+		}
+		if (header.getFlag(Flags.QR)) {
+			CompletableFuture<Response> request;
+			synchronized (this) {
+				request = requests.remove(header.getID());
+			}
+			if (request != null) {
+				request.complete(new Response(header.getRcode(), tlvType, tlvData));
+			}
+		} else if (header.getID() == 0) {
+			if (tlvType == PUSH) {
+				push(new DNSInput(tlvData));
+			} else if (tlvType == RETRY_DELAY) {
+				logger.log(Level.INFO, "DNS Push server {0} asked to end the session", address);
+				close();
+			}
+		} else {
+			// No requests from the server are supported
+			Header response = new Header(header.getID());
+			response.setFlag(Flags.QR);
+			response.setOpcode(DSO);
+			response.setRcode(DSOTYPENI);
+			synchronized (this) {
+				write(response.toWire());
+			}
+		}
+	}
+
+	/**
+	 * Apply the records of a PUSH TLV to the subscriptions (RFC 8765 section 6.3).
+	 */
+	private void push(DNSInput tlv) throws IOException {
+		Set<PushSubscription> changed = new LinkedHashSet<PushSubscription>();
+		while (tlv.remaining() > 0) {
+			Name name = new Name(tlv);
+			int type = tlv.readU16();
+			int dclass = tlv.readU16();
+			long ttl = tlv.readU32();
+			byte[] rdata = tlv.readByteArray(tlv.readU16());
+			List<PushSubscription> matching = new ArrayList<PushSubscription>();
+			synchronized (this) {
+				for (PushSubscription subscription : subscriptions.values()) {
+					if (subscription.name.equals(name) && (type == Type.ANY || subscription.type == type)) {
+						matching.add(subscription);
+					}
+				}
+			}
+			if (matching.isEmpty()) {
+				continue;
+			}
+			try {
+				for (PushSubscription subscription : matching) {
+					boolean modified;
+					if (ttl == DELETE_ALL_TTL) {
+						modified = subscription.removeAll(type);
+					} else if (ttl == DELETE_TTL) {
+						modified = subscription.remove(Record.newRecord(name, type, dclass, 0, rdata));
+					} else {
+						modified = subscription.add(Record.newRecord(name, type, dclass, ttl, rdata));
+					}
+					if (modified) {
+						changed.add(subscription);
+					}
+				}
+			} catch (RuntimeException ex) {
+				// A bad record mustn't end the session for all subscriptions
+				logger.log(Level.WARNING, "Ignoring invalid pushed record for " + name + " from " + address, ex);
+			}
+		}
+		for (PushSubscription subscription : changed) {
+			try {
+				subscription.listener.run();
+			} catch (RuntimeException ex) {
+				logger.log(Level.WARNING, "DNS Push listener failed", ex);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DNS Push session with " + address;
+	}
+
+	/**
+	 * A subscription to a record set of the session.
+	 */
+	private class PushSubscription implements Subscription {
+
+		private final int id;
+		private final Name name;
+		private final int type;
+		private final Runnable listener;
+		private final Set<Record> records = new LinkedHashSet<Record>();
+
+		PushSubscription(int id, Name name, int type, Runnable listener) {
+			this.id = id;
+			this.name = name;
+			this.type = type;
+			this.listener = listener;
+		}
+
+		@Override
+		public synchronized Record[] getRecords() {
+			return records.toArray(new Record[records.size()]);
+		}
+
+		@Override
+		public RecordNotifier getNotifier() {
+			return DnsPushSession.this;
+		}
+
+		@Override
+		public void cancel() {
+			unsubscribe(this);
+		}
+
+		private synchronized boolean add(Record record) {
+			// Replace any equal record, the TTL may have changed
+			records.remove(record);
+			records.add(record);
+			return true;
+		}
+
+		private synchronized boolean remove(Record record) {
+			return records.remove(record);
+		}
+
+		private synchronized boolean removeAll(int type) {
+			return records.removeIf(record -> type == Type.ANY || record.getType() == type);
+		}
+	}
+
+	/**
+	 * A DSO response.
+	 */
+	private static class Response {
+
+		final int rcode;
+		final int tlvType;
+		final byte[] tlvData;
+
+		Response(int rcode, int tlvType, byte[] tlvData) {
+			this.rcode = rcode;
+			this.tlvType = tlvType;
+			this.tlvData = tlvData;
+		}
+	}
+
+}
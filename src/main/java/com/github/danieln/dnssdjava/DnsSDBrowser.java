@@ -5,10 +5,22 @@
  */
 package com.github.danieln.dnssdjava;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A DnsSDBrowser object provides methods for discovering services.
+ * <p>
+ * Each blocking method has an asynchronous variant that returns a {@link CompletableFuture}
+ * instead of blocking the calling thread. Cancelling the future abandons any outstanding
+ * DNS queries. The variants taking a timeout complete the future with a {@link TimeoutException}
+ * if the result isn't available in time.
  * @author Daniel Nilsson
  */
 public interface DnsSDBrowser {
@@ -20,6 +32,25 @@ public interface DnsSDBrowser {
 	 */
 	ServiceData getServiceData(ServiceName service);
 
+	/**
+	 * Get the service details for many services.
+	 * The lookups for the services are made concurrently, which is much faster
+	 * than calling {@link #getServiceData(ServiceName)} for each service.
+	 * The default implementation looks up one service at a time.
+	 * @param services the names of the services.
+	 * @return a map from service name to service data, services that weren't found are not included.
+	 */
+	default Map<ServiceName, ServiceData> getServiceData(Collection<ServiceName> services) {
+		Map<ServiceName, ServiceData> result = new LinkedHashMap<ServiceName, ServiceData>();
+		for (ServiceName service : services) {
+			ServiceData serviceData = getServiceData(service);
+			if (serviceData != null) {
+				result.put(service, serviceData);
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * Get the names of all services of a certain type.
 	 * If the type has one or more subtypes specified then the result
@@ -29,6 +60,20 @@ public interface DnsSDBrowser {
 	 */
 	Collection<ServiceName> getServiceInstances(ServiceType type);
 
+	/**
+	 * Get the names and details of all services of a certain type.
+	 * This gives the same result as {@link #getServiceInstances(ServiceType)} followed by
+	 * {@link #getServiceData(Collection)}, but is faster. The details of each service are
+	 * fetched as soon as its name is known, and records the DNS server includes with the
+	 * list of names (RFC 6763 chapter 12.1) are used instead of querying for them.
+	 * The default implementation does exactly that, implementations should override it.
+	 * @param type the service type to look up.
+	 * @return a map from service name to service data.
+	 */
+	default Map<ServiceName, ServiceData> browseAndResolve(ServiceType type) {
+		return getServiceData(getServiceInstances(type));
+	}
+
 	/**
 	 * Get the available service types.
 	 * This only lists the base types without any subtypes.
@@ -37,4 +82,147 @@ public interface DnsSDBrowser {
 	 */
 	Collection<ServiceType> getServiceTypes();
 
+	/**
+	 * Asynchronous version of {@link #getServiceData(ServiceName)}.
+	 * The default implementations of the asynchronous methods call the blocking
+	 * methods on the executor of the {@link DnsSDFactory}.
+	 * @param service the name of the service.
+	 * @return a future for the service data, the result is null if the service wasn't found.
+	 */
+	default CompletableFuture<ServiceData> getServiceDataAsync(ServiceName service) {
+		return DnsSDFutures.submit(DnsSDFactory.getInstance().getExecutor(), () -> getServiceData(service));
+	}
+
+	/**
+	 * Asynchronous version of {@link #getServiceData(ServiceName)} with a timeout.
+	 * @param service the name of the service.
+	 * @param timeout the maximum time to wait for the result.
+	 * @param unit the unit of the timeout argument.
+	 * @return a future for the service data, the result is null if the service wasn't found.
+	 */
+	default CompletableFuture<ServiceData> getServiceDataAsync(ServiceName service, long timeout, TimeUnit unit) {
+		return DnsSDFutures.withTimeout(getServiceDataAsync(service), timeout, unit);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getServiceData(Collection)}.
+	 * @param services the names of the services.
+	 * @return a future for the map from service name to service data.
+	 */
+	default CompletableFuture<Map<ServiceName, ServiceData>> getServiceDataAsync(Collection<ServiceName> services) {
+		List<ServiceName> copy = new ArrayList<ServiceName>(services);
+		return DnsSDFutures.submit(DnsSDFactory.getInstance().getExecutor(), () -> getServiceData(copy));
+	}
+
+	/**
+	 * Asynchronous version of {@link #getServiceData(Collection)} with a timeout.
+	 * @param services the names of the services.
+	 * @param timeout the maximum time to wait for the result.
+	 * @param unit the unit of the timeout argument.
+	 * @return a future for the map from service name to service data.
+	 */
+	default CompletableFuture<Map<ServiceName, ServiceData>> getServiceDataAsync(Collection<ServiceName> services, long timeout, TimeUnit unit) {
+		return DnsSDFutures.withTimeout(getServiceDataAsync(services), timeout, unit);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getServiceInstances(ServiceType)}.
+	 * @param type the service type to look up.
+	 * @return a future for the collection of service names.
+	 */
+	default CompletableFuture<Collection<ServiceName>> getServiceInstancesAsync(ServiceType type) {
+		return DnsSDFutures.submit(DnsSDFactory.getInstance().getExecutor(), () -> getServiceInstances(type));
+	}
+
+	/**
+	 * Asynchronous version of {@link #getServiceInstances(ServiceType)} with a timeout.
+	 * @param type the service type to look up.
+	 * @param timeout the maximum time to wait for the result.
+	 * @param unit the unit of the timeout argument.
+	 * @return a future for the collection of service names.
+	 */
+	default CompletableFuture<Collection<ServiceName>> getServiceInstancesAsync(ServiceType type, long timeout, TimeUnit unit) {
+		return DnsSDFutures.withTimeout(getServiceInstancesAsync(type), timeout, unit);
+	}
+
+	/**
+	 * Asynchronous version of {@link #browseAndResolve(ServiceType)}.
+	 * @param type the service type to look up.
+	 * @return a future for the map from service name to service data.
+	 */
+	default CompletableFuture<Map<ServiceName, ServiceData>> browseAndResolveAsync(ServiceType type) {
+		return DnsSDFutures.submit(DnsSDFactory.getInstance().getExecutor(), () -> browseAndResolve(type));
+	}
+
+	/**
+	 * Asynchronous version of {@link #browseAndResolve(ServiceType)} with a timeout.
+	 * @param type the service type to look up.
+	 * @param timeout the maximum time to wait for the result.
+	 * @param unit the unit of the timeout argument.
+	 * @return a future for the map from service name to service data.
+	 */
+	default CompletableFuture<Map<ServiceName, ServiceData>> browseAndResolveAsync(ServiceType type, long timeout, TimeUnit unit) {
+		return DnsSDFutures.withTimeout(browseAndResolveAsync(type), timeout, unit);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getServiceTypes()}.
+	 * @return a future for the collection of service types.
+	 */
+	default CompletableFuture<Collection<ServiceType>> getServiceTypesAsync() {
+		return DnsSDFutures.submit(DnsSDFactory.getInstance().getExecutor(), () -> getServiceTypes());
+	}
+
+	/**
+	 * Asynchronous version of {@link #getServiceTypes()} with a timeout.
+	 * @param timeout the maximum time to wait for the result.
+	 * @param unit the unit of the timeout argument.
+	 * @return a future for the collection of service types.
+	 */
+	default CompletableFuture<Collection<ServiceType>> getServiceTypesAsync(long timeout, TimeUnit unit) {
+		return DnsSDFutures.withTimeout(getServiceTypesAsync(), timeout, unit);
+	}
+
+	/**
+	 * Get statistics about the cache of browse and resolve results.
+	 * Results are cached until the time to live of the DNS records runs out.
+	 * The default implementation has no cache, all its statistics are zero.
+	 * @return a snapshot of the cache statistics.
+	 */
+	default CacheStatistics getCacheStatistics() {
+		return new CacheStatistics(0, 0, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Remove all cached browse and resolve results.
+	 * The default implementation has no cache and does nothing.
+	 */
+	default void clearCache() {
+	}
+
+	/**
+	 * Start watching the service instances of a type.
+	 * The listener is told about the instances already known, and then about
+	 * instances that are added, removed or changed. The instances are queried again
+	 * when the time to live of the DNS records runs out. All listeners of the same
+	 * type share the queries.
+	 * The default implementation can't watch services and always throws.
+	 * @param type the service type to watch.
+	 * @param listener the listener to notify.
+	 * @throws UnsupportedOperationException if the browser can't watch services.
+	 */
+	default void watch(ServiceType type, ServiceListener listener) {
+		throw new UnsupportedOperationException("Watching services not supported by " + getClass().getName());
+	}
+
+	/**
+	 * Stop watching the service instances of a type.
+	 * The queries stop when the last listener of the type is removed.
+	 * The default implementation does nothing, as nothing can be watched.
+	 * @param type the service type passed to {@link #watch(ServiceType, ServiceListener)}.
+	 * @param listener the listener to remove.
+	 */
+	default void unwatch(ServiceType type, ServiceListener listener) {
+	}
+
 }
@@ -44,4 +44,16 @@ public interface DnsSDDomainEnumerator {
 	 */
 	Collection<String> getRegisteringDomains();
 
+	/**
+	 * Find all the browsing and registering domains at once.
+	 * The default implementation calls the other methods one after the other,
+	 * implementations should override it to send the queries concurrently.
+	 * @return the domains.
+	 */
+	default DomainEnumeration enumerate() {
+		return new DomainEnumeration(getBrowsingDomains(), getDefaultBrowsingDomain(),
+				getRegisteringDomains(), getDefaultRegisteringDomain(),
+				getLegacyBrowsingDomains(), DomainEnumeration.DEFAULT_TTL);
+	}
+
 }
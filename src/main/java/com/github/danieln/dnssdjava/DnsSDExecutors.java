@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Internal helper class for creating the threads used to run DNS queries.
+ * @author Daniel Nilsson
+ */
+class DnsSDExecutors {
+
+	/**
+	 * The default number of threads in the query executor.
+	 */
+	private static final int DEFAULT_THREADS = 8;
+
+	/**
+	 * How long an idle query thread is kept alive, in seconds.
+	 */
+	private static final long KEEP_ALIVE = 30;
+
+	private static ScheduledThreadPoolExecutor scheduler;
+
+	private DnsSDExecutors() {
+	}
+
+	/**
+	 * Get the shared scheduler used for timeouts and other timed events.
+	 * Tasks run on the scheduler must be short and not block.
+	 * @return the scheduler, running on a single daemon thread.
+	 */
+	static synchronized ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("dnssd-timer"));
+			scheduler.setRemoveOnCancelPolicy(true);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Create the default executor for running DNS queries.
+	 * The number of threads is bounded by the "dnssd.threads" system property,
+	 * idle threads are stopped so the executor holds no threads when unused.
+	 * @return a new executor using daemon threads.
+	 */
+	static ExecutorService newQueryExecutor() {
+		int threads = Math.max(1, Integer.getInteger("dnssd.threads", DEFAULT_THREADS));
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new DaemonThreadFactory("dnssd-query"));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Creates named daemon threads, so that pending queries never keep the JVM alive.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -8,6 +8,8 @@ package com.github.danieln.dnssdjava;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Factory class for creating {@link DnsSDBrowser}, {@link DnsSDRegistrator} and
@@ -18,6 +20,28 @@ public abstract class DnsSDFactory {
 
 	private static DnsSDFactory instance;
 
+	/**
+	 * The default time to wait for each reverse lookup when finding the computer domains, in milliseconds.
+	 */
+	private static final long DEFAULT_REVERSE_LOOKUP_TIMEOUT = 2000;
+
+	private ExecutorService executor;
+
+	/**
+	 * The computer domains found for a generation of the network configuration.
+	 */
+	private List<String> computerDomains;
+	private long computerDomainsGeneration;
+
+	/**
+	 * The domains found for the computer domains, for a generation of the network configuration.
+	 */
+	private DomainEnumeration domainEnumeration;
+	private long domainEnumerationGeneration;
+
+	private final List<NetworkChangeListener> networkListeners = new CopyOnWriteArrayList<NetworkChangeListener>();
+	private NetworkWatcher.Listener networkWatcherListener;
+
 	/**
 	 * Get the singleton factory object.
 	 * @return the DnsSDFactory.
@@ -46,6 +70,32 @@ public abstract class DnsSDFactory {
 	protected DnsSDFactory() {
 	}
 
+	/**
+	 * Get the executor used to run DNS queries concurrently.
+	 * Unless another executor has been set a shared pool of daemon threads is used,
+	 * the maximum number of threads is taken from the "dnssd.threads" system property.
+	 * @return the query executor.
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = DnsSDExecutors.newQueryExecutor();
+		}
+		return executor;
+	}
+
+	/**
+	 * Set the executor used to run DNS queries concurrently.
+	 * Only objects created after this call will use the new executor.
+	 * The size of the executor bounds the number of concurrent DNS queries.
+	 * @param executor the executor to use.
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		if (executor == null) {
+			throw new NullPointerException("executor");
+		}
+		this.executor = executor;
+	}
+
 	/**
 	 * Create a {@link DnsSDDomainEnumerator} that finds the browsing
 	 * and registration domains for the given computer domains.
@@ -73,13 +123,86 @@ public abstract class DnsSDFactory {
 		return createDomainEnumerator(getComputerDomains());
 	}
 
+	/**
+	 * Find the browsing and registration domains for this computer.
+	 * The result is shared until it expires or the network configuration changes,
+	 * so creating browsers and registrators in the default domains doesn't need any
+	 * queries once it has been done.
+	 * @return the domains.
+	 */
+	public DomainEnumeration getDomainEnumeration() {
+		long generation = NetworkWatcher.getInstance().getGeneration();
+		synchronized (this) {
+			if (domainEnumeration != null && !domainEnumeration.isExpired() && domainEnumerationGeneration == generation) {
+				return domainEnumeration;
+			}
+		}
+		DomainEnumeration enumeration = createDomainEnumerator().enumerate();
+		synchronized (this) {
+			domainEnumeration = enumeration;
+			domainEnumerationGeneration = generation;
+		}
+		return enumeration;
+	}
+
 	/**
 	 * Try to figure out the domain name(s) for the computer.
 	 * This includes reverse subnet addresses, as described in RFC 6763 chapter 11.
+	 * <p>
+	 * The domains are found by reverse lookups of the addresses of the computer, done in
+	 * parallel, waiting at most "dnssd.reverse.timeout" milliseconds for each (system property).
+	 * The result is kept until the network interfaces or their addresses change,
+	 * and then only the addresses that are new are looked up.
 	 * @return a list of potential domain names.
 	 */
 	public List<String> getComputerDomains() {
-		return DomainUtil.getComputerDomains();
+		long generation = NetworkWatcher.getInstance().getGeneration();
+		synchronized (this) {
+			if (computerDomains != null && computerDomainsGeneration == generation) {
+				return computerDomains;
+			}
+		}
+		List<String> domains = Collections.unmodifiableList(DomainUtil.getComputerDomains(new DnsClient(getExecutor()), getReverseLookupTimeout()));
+		synchronized (this) {
+			computerDomains = domains;
+			computerDomainsGeneration = generation;
+		}
+		return domains;
+	}
+
+	/**
+	 * Get the time to wait for each reverse lookup of the addresses of the computer.
+	 * The time is taken from the "dnssd.reverse.timeout" system property.
+	 * @return the time in milliseconds.
+	 */
+	static long getReverseLookupTimeout() {
+		return Long.getLong("dnssd.reverse.timeout", DEFAULT_REVERSE_LOOKUP_TIMEOUT);
+	}
+
+	/**
+	 * Add a listener that is told when the network configuration of the computer changes.
+	 * The network interfaces are checked every "dnssd.network.interval" milliseconds
+	 * (system property), caches that depend on them are cleared when they change.
+	 * @param listener the listener to add.
+	 */
+	public synchronized void addNetworkChangeListener(NetworkChangeListener listener) {
+		if (networkWatcherListener == null) {
+			networkWatcherListener = (removed, added) -> {
+				for (NetworkChangeListener l : networkListeners) {
+					getExecutor().execute(l::networkChanged);
+				}
+			};
+			NetworkWatcher.getInstance().addListener(networkWatcherListener);
+		}
+		networkListeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener added with {@link #addNetworkChangeListener(NetworkChangeListener)}.
+	 * @param listener the listener to remove.
+	 */
+	public void removeNetworkChangeListener(NetworkChangeListener listener) {
+		networkListeners.remove(listener);
 	}
 
 	/**
@@ -88,7 +211,7 @@ public abstract class DnsSDFactory {
 	 * @return a new {@link DnsSDBrowser}.
 	 */
 	public DnsSDBrowser createBrowser() {
-		return createBrowser(createDomainEnumerator());
+		return createBrowser(getDomainEnumeration());
 	}
 
 	/**
@@ -116,13 +239,23 @@ public abstract class DnsSDFactory {
 	 * @return a new {@link DnsSDBrowser}.
 	 */
 	public DnsSDBrowser createBrowser(DnsSDDomainEnumerator domainEnumerator) {
-		Collection<String> list = domainEnumerator.getBrowsingDomains();
+		return createBrowser(domainEnumerator.enumerate());
+	}
+
+	/**
+	 * Create a {@link DnsSDBrowser} that finds services in the
+	 * browsing domains of a {@link DomainEnumeration}.
+	 * @param domainEnumeration the domains to browse.
+	 * @return a new {@link DnsSDBrowser}.
+	 */
+	public DnsSDBrowser createBrowser(DomainEnumeration domainEnumeration) {
+		Collection<String> list = domainEnumeration.getBrowsingDomains();
 		if (list.isEmpty()) {
-			String bd = domainEnumerator.getDefaultBrowsingDomain();
+			String bd = domainEnumeration.getDefaultBrowsingDomain();
 			if (bd != null) {
 				list = Collections.singletonList(bd);
 			} else {
-				list = domainEnumerator.getLegacyBrowsingDomains();
+				list = domainEnumeration.getLegacyBrowsingDomains();
 			}
 		}
 		return createBrowser(list);
@@ -135,7 +268,7 @@ public abstract class DnsSDFactory {
 	 * @throws DnsSDException if the registrator can't be created.
 	 */
 	public DnsSDRegistrator createRegistrator() throws DnsSDException {
-		return createRegistrator(createDomainEnumerator());
+		return createRegistrator(getDomainEnumeration());
 	}
 
 	/**
@@ -155,9 +288,20 @@ public abstract class DnsSDFactory {
 	 * @throws DnsSDException if the registrator can't be created.
 	 */
 	public DnsSDRegistrator createRegistrator(DnsSDDomainEnumerator domainEnumerator) throws DnsSDException {
-		String registeringDomain = domainEnumerator.getDefaultRegisteringDomain();
+		return createRegistrator(domainEnumerator.enumerate());
+	}
+
+	/**
+	 * Create a {@link DnsSDRegistrator} that registers services in the
+	 * registration domain of a {@link DomainEnumeration}.
+	 * @param domainEnumeration the domains to register services in.
+	 * @return a new {@link DnsSDRegistrator}.
+	 * @throws DnsSDException if the registrator can't be created.
+	 */
+	public DnsSDRegistrator createRegistrator(DomainEnumeration domainEnumeration) throws DnsSDException {
+		String registeringDomain = domainEnumeration.getDefaultRegisteringDomain();
 		if (registeringDomain == null) {
-			Collection<String> domains = domainEnumerator.getRegisteringDomains();
+			Collection<String> domains = domainEnumeration.getRegisteringDomains();
 			if (!domains.isEmpty()) {
 				registeringDomain = domains.iterator().next();
 			} else {
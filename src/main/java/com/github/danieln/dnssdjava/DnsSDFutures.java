@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Internal helper class for working with {@link CompletableFuture}s.
+ * @author Daniel Nilsson
+ */
+class DnsSDFutures {
+
+	private DnsSDFutures() {
+	}
+
+	/**
+	 * Run a task on an executor.
+	 * Unlike {@link CompletableFuture#supplyAsync} cancelling the returned future
+	 * interrupts the task, or prevents it from starting if it is still queued.
+	 * @param executor the executor to run the task on.
+	 * @param task the task to run.
+	 * @return a future that completes with the result of the task.
+	 */
+	static <T> CompletableFuture<T> submit(ExecutorService executor, final Callable<T> task) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final Future<?> future;
+		try {
+			future = executor.submit(() -> {
+				if (result.isDone()) {
+					return;		// Cancelled or timed out while queued
+				}
+				try {
+					result.complete(task.call());
+				} catch (Throwable t) {
+					result.completeExceptionally(t);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			result.completeExceptionally(ex);
+			return result;
+		}
+		result.whenComplete((value, ex) -> {
+			if (result.isCancelled()) {
+				future.cancel(true);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Get a future that fails with a {@link TimeoutException} if the given
+	 * future doesn't complete within the timeout.
+	 * The given future is cancelled on timeout, and if the returned future is cancelled.
+	 * @param future the future to put a time limit on.
+	 * @param timeout the maximum time to wait.
+	 * @param unit the unit of the timeout argument.
+	 * @return a new future with the same result as the given future.
+	 */
+	static <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, final long timeout, final TimeUnit unit) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final ScheduledFuture<?> timer = DnsSDExecutors.scheduler().schedule(() -> {
+			if (result.completeExceptionally(new TimeoutException("No result within " + timeout + " " + unit))) {
+				future.cancel(true);
+			}
+		}, timeout, unit);
+		future.whenComplete((value, ex) -> {
+			timer.cancel(false);
+			if (ex != null) {
+				result.completeExceptionally(ex);
+			} else {
+				result.complete(value);
+			}
+		});
+		result.whenComplete((value, ex) -> {
+			if (result.isCancelled()) {
+				future.cancel(true);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Get a future for the union of the results of several futures.
+	 * Duplicates are removed, the order of the first occurrence is kept.
+	 * Cancelling the returned future cancels all the given futures.
+	 * @param futures the futures to combine.
+	 * @return a future that completes with a new list when all the given futures are done.
+	 */
+	static <T> CompletableFuture<Collection<T>> union(final List<CompletableFuture<List<T>>> futures) {
+		CompletableFuture<Collection<T>> result = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.thenApply(v -> {
+					Set<T> set = new LinkedHashSet<T>();
+					for (CompletableFuture<List<T>> future : futures) {
+						set.addAll(future.join());
+					}
+					return new ArrayList<T>(set);
+				});
+		cancelOnCancel(result, futures);
+		return result;
+	}
+
+	/**
+	 * Apply an asynchronous function to every key, with a limit on how many
+	 * of the returned futures may be outstanding at the same time.
+	 * The resulting map has the same iteration order as the keys, keys whose
+	 * result is null are left out. If any future fails the result fails with
+	 * the same exception and the outstanding futures are cancelled.
+	 * Cancelling the returned future cancels all outstanding futures.
+	 * @param keys the keys to process, duplicates are only processed once.
+	 * @param limit the maximum number of outstanding futures.
+	 * @param function the function that starts the processing of a key.
+	 * @return a future for a map from key to result.
+	 */
+	static <K, V> CompletableFuture<Map<K, V>> mapBounded(Collection<K> keys, int limit, Function<? super K, CompletableFuture<V>> function) {
+		return new BoundedMapper<K, V>(keys, limit, function).start();
+	}
+
+	/**
+	 * Make sure that the futures are cancelled if the dependent future is cancelled.
+	 * @param dependent the future whose cancellation should be propagated.
+	 * @param futures the futures to cancel.
+	 */
+	static void cancelOnCancel(final CompletableFuture<?> dependent, final Collection<? extends Future<?>> futures) {
+		dependent.whenComplete((value, ex) -> {
+			if (dependent.isCancelled()) {
+				for (Future<?> future : futures) {
+					future.cancel(true);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for a future and return its result.
+	 * This is used to implement the blocking methods on top of the asynchronous ones.
+	 * Unchecked exceptions thrown by the computation are rethrown as they are.
+	 * If the waiting thread is interrupted the future is cancelled and
+	 * the interrupt status of the thread is kept.
+	 * @param future the future to wait for.
+	 * @return the result, or null if the thread was interrupted.
+	 */
+	static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException ex) {
+			throw unchecked(ex.getCause());
+		}
+	}
+
+	/**
+	 * Get the exception that caused a future to fail.
+	 * Dependent futures wrap the exception in a {@link CompletionException}.
+	 * @param t the exception the future failed with.
+	 * @return the original exception.
+	 */
+	static Throwable unwrap(Throwable t) {
+		while (t instanceof CompletionException && t.getCause() != null) {
+			t = t.getCause();
+		}
+		return t;
+	}
+
+	/**
+	 * Get an unchecked exception to rethrow for a failed computation.
+	 * @param t the exception thrown by the computation.
+	 * @return the exception itself if it is unchecked, else a wrapping RuntimeException.
+	 */
+	static RuntimeException unchecked(Throwable t) {
+		if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t instanceof RuntimeException) {
+			return (RuntimeException) t;
+		}
+		return new RuntimeException(t);
+	}
+
+	/**
+	 * Implementation of {@link DnsSDFutures#mapBounded(Collection, int, Function)}.
+	 * Futures that are already complete when returned by the function
+	 * are handled in a loop rather than by recursion, so the stack doesn't
+	 * grow with the number of keys.
+	 */
+	private static class BoundedMapper<K, V> {
+
+		private final List<K> keys;
+		private final int limit;
+		private final Function<? super K, CompletableFuture<V>> function;
+		private final CompletableFuture<Map<K, V>> result = new CompletableFuture<Map<K, V>>();
+		private final Map<K, V> values = new HashMap<K, V>();
+		private final Set<CompletableFuture<V>> outstanding = new HashSet<CompletableFuture<V>>();
+		private final AtomicInteger pumping = new AtomicInteger();
+		private int next;
+
+		BoundedMapper(Collection<K> keys, int limit, Function<? super K, CompletableFuture<V>> function) {
+			this.keys = new ArrayList<K>(new LinkedHashSet<K>(keys));
+			this.limit = Math.max(1, limit);
+			this.function = function;
+		}
+
+		CompletableFuture<Map<K, V>> start() {
+			result.whenComplete((value, ex) -> {
+				if (result.isCancelled()) {
+					cancelOutstanding();
+				}
+			});
+			pump();
+			return result;
+		}
+
+		/**
+		 * Start new futures while there is room for them.
+		 * Only one thread at a time does the work, a call made while another
+		 * thread is pumping makes that thread do another round.
+		 */
+		private void pump() {
+			if (pumping.getAndIncrement() != 0) {
+				return;
+			}
+			do {
+				while (true) {
+					K key;
+					synchronized (this) {
+						if (result.isDone() || next >= keys.size() || outstanding.size() >= limit) {
+							break;
+						}
+						key = keys.get(next++);
+					}
+					start(key);
+				}
+				synchronized (this) {
+					if (next >= keys.size() && outstanding.isEmpty() && !result.isDone()) {
+						Map<K, V> map = new LinkedHashMap<K, V>();
+						for (K key : keys) {
+							V value = values.get(key);
+							if (value != null) {
+								map.put(key, value);
+							}
+						}
+						result.complete(map);
+					}
+				}
+			} while (pumping.decrementAndGet() != 0);
+		}
+
+		private void start(final K key) {
+			final CompletableFuture<V> future;
+			try {
+				future = function.apply(key);
+			} catch (RuntimeException ex) {
+				fail(ex);
+				return;
+			}
+			synchronized (this) {
+				outstanding.add(future);
+			}
+			future.whenComplete((value, ex) -> {
+				synchronized (this) {
+					outstanding.remove(future);
+					values.put(key, value);
+				}
+				if (ex != null) {
+					fail(ex);
+				} else {
+					pump();
+				}
+			});
+		}
+
+		private void fail(Throwable ex) {
+			if (result.completeExceptionally(ex)) {
+				cancelOutstanding();
+			}
+		}
+
+		private void cancelOutstanding() {
+			List<CompletableFuture<V>> list;
+			synchronized (this) {
+				list = new ArrayList<CompletableFuture<V>>(outstanding);
+			}
+			for (CompletableFuture<V> future : list) {
+				future.cancel(true);
+			}
+		}
+	}
+
+}
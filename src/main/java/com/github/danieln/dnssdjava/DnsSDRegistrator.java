@@ -6,10 +6,24 @@
 package com.github.danieln.dnssdjava;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
  * A DnsSDRegistrator object provides methods for registering services.
+ * <p>
+ * The register and unregister methods have asynchronous variants that return a
+ * {@link CompletableFuture} instead of blocking the calling thread. Errors are reported
+ * by completing the future exceptionally with a {@link DnsSDException}. The variants taking
+ * a timeout complete the future with a {@link TimeoutException} if the server doesn't
+ * respond in time, the update may still have been applied by the server in that case.
  * @author Daniel Nilsson
  */
 public interface DnsSDRegistrator {
@@ -72,6 +86,137 @@ public interface DnsSDRegistrator {
 	 */
 	boolean unregisterService(ServiceName serviceName) throws DnsSDException;
 
+	/**
+	 * Change the host, port or properties of a registered service.
+	 * The records are replaced in a single update, only those that differ from what
+	 * this registrator last sent for the service. Browsers never see the service missing,
+	 * as they would if it was unregistered and registered again.
+	 * The default implementation does unregister and register the service again,
+	 * implementations should override it to replace the records in place.
+	 * @param serviceData the new data of the service.
+	 * @return true if the service was updated, false if no service was found.
+	 * @throws DnsSDException if the service couldn't be updated due to some error.
+	 */
+	default boolean updateService(ServiceData serviceData) throws DnsSDException {
+		return unregisterService(serviceData.getName()) && registerService(serviceData);
+	}
+
+	/**
+	 * Add a number of services to DNS-SD.
+	 * The services are sent to the server in as few updates as possible.
+	 * Services whose names are already taken are not updated, as in {@link #registerService(ServiceData)}.
+	 * If the same service name occurs more than once only the first service is registered.
+	 * The default implementation registers the services one at a time.
+	 * @param services the services to register.
+	 * @return a map from the name of each service to true if it was registered,
+	 *         false if the service name was already registered.
+	 * @throws DnsSDException if the services couldn't be registered due to some error,
+	 *         some of them may have been registered.
+	 */
+	default Map<ServiceName, Boolean> registerServices(Collection<ServiceData> services) throws DnsSDException {
+		Map<ServiceName, Boolean> result = new LinkedHashMap<ServiceName, Boolean>();
+		for (ServiceData serviceData : services) {
+			if (!result.containsKey(serviceData.getName())) {
+				result.put(serviceData.getName(), registerService(serviceData));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remove a number of services from DNS-SD.
+	 * The services are sent to the server in as few updates as possible.
+	 * The default implementation unregisters the services one at a time.
+	 * @param serviceNames the names of the services to remove.
+	 * @return a map from each service name to true if the service was removed,
+	 *         false if no service was found.
+	 * @throws DnsSDException if the services couldn't be unregistered due to some error,
+	 *         some of them may have been unregistered.
+	 */
+	default Map<ServiceName, Boolean> unregisterServices(Collection<ServiceName> serviceNames) throws DnsSDException {
+		Map<ServiceName, Boolean> result = new LinkedHashMap<ServiceName, Boolean>();
+		for (ServiceName serviceName : serviceNames) {
+			if (!result.containsKey(serviceName)) {
+				result.put(serviceName, unregisterService(serviceName));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Asynchronous version of {@link #registerService(ServiceData)}.
+	 * The default implementations of the asynchronous methods call the blocking
+	 * methods on the executor of the {@link DnsSDFactory}.
+	 * @param serviceData the service to register.
+	 * @return a future for the result, true if the service was registered,
+	 *         false if the service name was already registered.
+	 */
+	default CompletableFuture<Boolean> registerServiceAsync(ServiceData serviceData) {
+		return DnsSDFutures.submit(DnsSDFactory.getInstance().getExecutor(), () -> registerService(serviceData));
+	}
+
+	/**
+	 * Asynchronous version of {@link #registerService(ServiceData)} with a timeout.
+	 * @param serviceData the service to register.
+	 * @param timeout the maximum time to wait for the result.
+	 * @param unit the unit of the timeout argument.
+	 * @return a future for the result, true if the service was registered,
+	 *         false if the service name was already registered.
+	 */
+	default CompletableFuture<Boolean> registerServiceAsync(ServiceData serviceData, long timeout, TimeUnit unit) {
+		return DnsSDFutures.withTimeout(registerServiceAsync(serviceData), timeout, unit);
+	}
+
+	/**
+	 * Asynchronous version of {@link #unregisterService(ServiceName)}.
+	 * @param serviceName the name of the service to remove.
+	 * @return a future for the result, true if the service was removed, false if no service was found.
+	 */
+	default CompletableFuture<Boolean> unregisterServiceAsync(ServiceName serviceName) {
+		return DnsSDFutures.submit(DnsSDFactory.getInstance().getExecutor(), () -> unregisterService(serviceName));
+	}
+
+	/**
+	 * Asynchronous version of {@link #unregisterService(ServiceName)} with a timeout.
+	 * @param serviceName the name of the service to remove.
+	 * @param timeout the maximum time to wait for the result.
+	 * @param unit the unit of the timeout argument.
+	 * @return a future for the result, true if the service was removed, false if no service was found.
+	 */
+	default CompletableFuture<Boolean> unregisterServiceAsync(ServiceName serviceName, long timeout, TimeUnit unit) {
+		return DnsSDFutures.withTimeout(unregisterServiceAsync(serviceName), timeout, unit);
+	}
+
+	/**
+	 * Asynchronous version of {@link #updateService(ServiceData)}.
+	 * @param serviceData the new data of the service.
+	 * @return a future for the result, true if the service was updated, false if no service was found.
+	 */
+	default CompletableFuture<Boolean> updateServiceAsync(ServiceData serviceData) {
+		ServiceData copy = new ServiceData(serviceData);
+		return DnsSDFutures.submit(DnsSDFactory.getInstance().getExecutor(), () -> updateService(copy));
+	}
+
+	/**
+	 * Asynchronous version of {@link #registerServices(Collection)}.
+	 * @param services the services to register.
+	 * @return a future for the result of each service.
+	 */
+	default CompletableFuture<Map<ServiceName, Boolean>> registerServicesAsync(Collection<ServiceData> services) {
+		List<ServiceData> copy = new ArrayList<ServiceData>(services);
+		return DnsSDFutures.submit(DnsSDFactory.getInstance().getExecutor(), () -> registerServices(copy));
+	}
+
+	/**
+	 * Asynchronous version of {@link #unregisterServices(Collection)}.
+	 * @param serviceNames the names of the services to remove.
+	 * @return a future for the result of each service.
+	 */
+	default CompletableFuture<Map<ServiceName, Boolean>> unregisterServicesAsync(Collection<ServiceName> serviceNames) {
+		List<ServiceName> copy = new ArrayList<ServiceName>(serviceNames);
+		return DnsSDFutures.submit(DnsSDFactory.getInstance().getExecutor(), () -> unregisterServices(copy));
+	}
+
 	/**
 	 * Constant specifying the hmac-md5 TSIG algorithm.
 	 */
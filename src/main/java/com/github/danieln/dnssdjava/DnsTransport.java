@@ -0,0 +1,608 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.ResolverConfig;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.TSIG;
+
+/**
+ * Internal class that sends DNS messages without blocking a thread per message.
+ * <p>
+ * UDP messages are sent from a pool of datagram channels, each message from a channel
+ * chosen at random. Each channel is bound to a port chosen by the system and replaced
+ * by a new one after a number of messages, so that a spoofed response has to guess the
+ * port as well as the message ID. The responses are matched to the outstanding messages
+ * by message ID, channel and server address, and responses to signed messages must
+ * have a valid signature. A single thread waits on a selector for responses and
+ * timeouts, and also handles the TCP connections used for messages too large for UDP
+ * and for truncated responses.
+ * <p>
+ * Messages that aren't sent again, like updates, are instead sent from a channel of
+ * their own connected to the server, so that they fail at once with an IOException
+ * such as {@link PortUnreachableException} if the server can't be reached.
+ * <p>
+ * Queries are sent again if there is no response in time, to the next server if
+ * there are several. Updates are sent only once, since repeating an update whose
+ * response was lost would make its prerequisites fail.
+ * @author Daniel Nilsson
+ */
+class DnsTransport {
+
+	private static final Logger logger = Logger.getLogger(DnsTransport.class.getName());
+
+	/**
+	 * The largest message sent over UDP, larger messages are sent over TCP (RFC 1035 section 4.2.1).
+	 */
+	private static final int MAX_UDP_SIZE = 512;
+
+	/**
+	 * The time to wait for the first response to a query, in milliseconds.
+	 * Doubled for every retransmission.
+	 */
+	private static final long INITIAL_TIMEOUT = 1000;
+
+	/**
+	 * The number of times a query is sent over UDP before giving up.
+	 */
+	private static final int TRIES = 4;
+
+	/**
+	 * The time to wait for the response to an update or a message sent over TCP, in milliseconds.
+	 */
+	private static final long TIMEOUT = 10000;
+
+	/**
+	 * The receive buffer size asked for, large enough to not drop the responses
+	 * to a burst of thousands of queries.
+	 */
+	private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * The number of datagram channels in the pool.
+	 */
+	private static final int PORTS = 16;
+
+	/**
+	 * The number of messages sent from a datagram channel before it is replaced.
+	 */
+	private static final int PORT_USES = 256;
+
+	private static DnsTransport instance;
+
+	private final Selector selector;
+	private final List<Port> ports = new ArrayList<Port>(PORTS);
+	private final Random random = new SecureRandom();
+	private final ByteBuffer buffer = ByteBuffer.allocate(Message.MAXLENGTH);
+	private final Queue<Exchange> added = new ConcurrentLinkedQueue<Exchange>();
+
+	/**
+	 * Outstanding UDP exchanges by message ID. Only used by the transport thread.
+	 */
+	private final Map<Integer, Exchange> exchanges = new HashMap<Integer, Exchange>();
+
+	/**
+	 * Deadlines of the outstanding exchanges, the earliest first. An exchange whose
+	 * deadline has been moved has stale entries, which are skipped.
+	 * Only used by the transport thread.
+	 */
+	private final PriorityQueue<Timeout> timeouts = new PriorityQueue<Timeout>();
+
+	private DnsTransport() throws IOException {
+		selector = Selector.open();
+		for (int i = 0; i < PORTS; i++) {
+			ports.add(new Port());
+		}
+		Thread thread = new Thread(this::run, "dnssd-transport");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Get the shared transport, opening it the first time.
+	 * @return the transport.
+	 * @throws IOException if the channel couldn't be opened.
+	 */
+	static synchronized DnsTransport getInstance() throws IOException {
+		if (instance == null) {
+			instance = new DnsTransport();
+		}
+		return instance;
+	}
+
+	/**
+	 * Get the servers to send queries to.
+	 * These are taken from the "dnssd.server" system property, a comma separated list of
+	 * host names or addresses with optional ports, or else from the system configuration.
+	 * @return the list of server addresses.
+	 * @throws UnknownHostException if a server name couldn't be resolved.
+	 */
+	static List<InetSocketAddress> getDefaultServers() throws UnknownHostException {
+		String property = System.getProperty("dnssd.server");
+		String[] names = property != null ? property.split(",") : ResolverConfig.getCurrentConfig().servers();
+		List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+		if (names != null) {
+			for (String name : names) {
+				servers.add(parseAddress(name.trim()));
+			}
+		}
+		if (servers.isEmpty()) {
+			servers.add(new InetSocketAddress(InetAddress.getByName("localhost"), SimpleResolver.DEFAULT_PORT));
+		}
+		return servers;
+	}
+
+	/**
+	 * Parse a server address like "ns.example.com", "10.0.0.1:5353" or "[::1]:53".
+	 */
+	private static InetSocketAddress parseAddress(String server) throws UnknownHostException {
+		String host = server;
+		int port = SimpleResolver.DEFAULT_PORT;
+		int colon = server.lastIndexOf(':');
+		if (server.startsWith("[")) {
+			int end = server.indexOf(']');
+			host = server.substring(1, end);
+			if (colon > end) {
+				port = Integer.parseInt(server.substring(colon + 1));
+			}
+		} else if (colon >= 0 && colon == server.indexOf(':')) {
+			host = server.substring(0, colon);
+			port = Integer.parseInt(server.substring(colon + 1));
+		}
+		return new InetSocketAddress(InetAddress.getByName(host), port);
+	}
+
+	/**
+	 * Send a message and wait for the response.
+	 * The message ID of the message is replaced by one not used by any other outstanding message.
+	 * The future is completed by the transport thread, dependent actions that take time
+	 * should run on an executor of their own.
+	 * @param message the message to send.
+	 * @param servers the servers to send the message to, the first one first.
+	 * @param tsig the key to sign the message with, or null to send the message unsigned.
+	 * @return a future for the response, fails with an IOException if there is no response
+	 *         or a signed message gets a response with a bad signature.
+	 */
+	CompletableFuture<Message> send(Message message, List<InetSocketAddress> servers, TSIG tsig) {
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("No servers to send to");
+		}
+		Exchange exchange = new Exchange(message, servers, tsig);
+		added.add(exchange);
+		selector.wakeup();
+		return exchange.future;
+	}
+
+	private void run() {
+		while (true) {
+			try {
+				Exchange exchange;
+				while ((exchange = added.poll()) != null) {
+					start(exchange);
+				}
+				long now = System.nanoTime();
+				if (timeouts.isEmpty()) {
+					selector.select();
+				} else if (timeouts.peek().deadline - now > 0) {
+					selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeouts.peek().deadline - now)));
+				} else {
+					selector.selectNow();
+				}
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.channel() instanceof DatagramChannel) {
+						receive((Port) key.attachment());
+					} else {
+						handleTcp(key);
+					}
+				}
+				checkTimeouts();
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "DNS transport failed", ex);
+			} catch (RuntimeException ex) {
+				logger.log(Level.SEVERE, "Unexpected error in DNS transport", ex);
+			}
+		}
+	}
+
+	private void start(Exchange exchange) {
+		if (exchange.future.isDone()) {
+			return;
+		}
+		if (exchanges.size() >= 0x10000) {
+			exchange.fail(new IOException("Too many DNS messages in flight"));
+			return;
+		}
+		int id;
+		do {
+			id = random.nextInt(0x10000);
+		} while (exchanges.containsKey(id));
+		exchange.message.getHeader().setID(id);
+		if (exchange.tsig != null) {
+			exchange.tsig.apply(exchange.message, null);
+		}
+		exchange.wire = exchange.message.toWire();
+		if (exchange.wire.length > MAX_UDP_SIZE) {
+			startTcp(exchange, exchange.servers.get(0));
+			return;
+		}
+		exchanges.put(id, exchange);
+		sendUdp(exchange);
+	}
+
+	private void sendUdp(Exchange exchange) {
+		InetSocketAddress server = exchange.servers.get(exchange.tries % exchange.servers.size());
+		long timeout = exchange.retransmit ? INITIAL_TIMEOUT << exchange.tries : TIMEOUT;
+		exchange.tries++;
+		setDeadline(exchange, timeout);
+		try {
+			if (exchange.port == null) {
+				exchange.port = exchange.retransmit ? getPort() : new Port(exchange, server);
+			}
+			exchange.port.channel.send(ByteBuffer.wrap(exchange.wire), server);
+		} catch (IOException ex) {
+			if (!exchange.retransmit) {
+				removeExchange(exchange);
+				exchange.fail(ex);
+				return;
+			}
+			// Treated like a lost message, there may be other servers
+			logger.log(Level.FINE, "Failed to send to " + server, ex);
+		}
+	}
+
+	/**
+	 * Get a datagram channel to send a new message from, replacing it in the pool
+	 * if it has been used enough.
+	 */
+	private Port getPort() throws IOException {
+		int i = random.nextInt(ports.size());
+		Port port = ports.get(i);
+		port.outstanding++;
+		if (++port.uses >= PORT_USES) {
+			port.retired = true;
+			ports.set(i, new Port());
+		}
+		return port;
+	}
+
+	/**
+	 * Remove an exchange that is done from the outstanding UDP exchanges.
+	 * Closes its channel if it has been replaced and this was its last exchange.
+	 */
+	private void removeExchange(Exchange exchange) {
+		exchanges.remove(exchange.message.getHeader().getID());
+		Port port = exchange.port;
+		if (port != null) {
+			exchange.port = null;
+			if (--port.outstanding == 0 && port.retired) {
+				port.close();
+			}
+		}
+	}
+
+	private void receive(Port port) throws IOException {
+		// Closed once the last exchange of a replaced or connected channel is done
+		while (port.channel.isOpen()) {
+			buffer.clear();
+			SocketAddress from;
+			try {
+				from = port.channel.receive(buffer);
+			} catch (PortUnreachableException ex) {
+				// Only reported on connected channels, which have a single exchange
+				Exchange exchange = port.exchange;
+				if (exchange != null && exchange.port == port) {
+					removeExchange(exchange);
+					exchange.fail(ex);
+				}
+				return;
+			}
+			if (from == null) {
+				return;
+			}
+			buffer.flip();
+			if (buffer.remaining() < 2) {
+				continue;
+			}
+			Exchange exchange = exchanges.get(buffer.getShort(0) & 0xFFFF);
+			if (exchange == null || exchange.port != port || !exchange.servers.contains(from)) {
+				continue;
+			}
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			Message response;
+			try {
+				response = new Message(bytes);
+			} catch (IOException ex) {
+				logger.log(Level.FINE, "Invalid response from " + from, ex);
+				continue;
+			}
+			if (!matches(exchange.message, response)) {
+				continue;
+			}
+			if (!response.getHeader().getFlag(Flags.TC) && !exchange.verify(response, bytes)) {
+				// Keep waiting, the real response may still come
+				logger.log(Level.FINE, "Ignoring response with bad TSIG signature from {0}", from);
+				continue;
+			}
+			removeExchange(exchange);
+			if (response.getHeader().getFlag(Flags.TC)) {
+				startTcp(exchange, (InetSocketAddress) from);
+			} else {
+				exchange.complete(response);
+			}
+		}
+	}
+
+	private void startTcp(Exchange exchange, InetSocketAddress server) {
+		try {
+			SocketChannel socket = SocketChannel.open();
+			exchange.socket = socket;
+			socket.configureBlocking(false);
+			socket.connect(server);
+			ByteBuffer out = ByteBuffer.allocate(2 + exchange.wire.length);
+			out.putShort((short) exchange.wire.length).put(exchange.wire).flip();
+			exchange.tcpBuffer = out;
+			setDeadline(exchange, TIMEOUT);
+			socket.register(selector, SelectionKey.OP_CONNECT, exchange);
+		} catch (IOException ex) {
+			exchange.fail(ex);
+		}
+	}
+
+	private void handleTcp(SelectionKey key) {
+		Exchange exchange = (Exchange) key.attachment();
+		SocketChannel socket = (SocketChannel) key.channel();
+		try {
+			if (key.isConnectable()) {
+				socket.finishConnect();
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (key.isWritable()) {
+				socket.write(exchange.tcpBuffer);
+				if (!exchange.tcpBuffer.hasRemaining()) {
+					exchange.tcpBuffer = ByteBuffer.allocate(2);
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			} else if (key.isReadable()) {
+				if (socket.read(exchange.tcpBuffer) < 0) {
+					throw new IOException("Connection closed by server");
+				}
+				if (!exchange.tcpBuffer.hasRemaining() && exchange.tcpBuffer.capacity() == 2) {
+					// The length prefix has been read
+					exchange.tcpBuffer = ByteBuffer.allocate(exchange.tcpBuffer.getShort(0) & 0xFFFF);
+				}
+				if (!exchange.tcpBuffer.hasRemaining()) {
+					exchange.closeSocket();
+					byte[] bytes = exchange.tcpBuffer.array();
+					Message response = new Message(bytes);
+					if (!matches(exchange.message, response)) {
+						throw new IOException("Response doesn't match the request");
+					}
+					if (!exchange.verify(response, bytes)) {
+						throw new IOException("TSIG verification of response failed");
+					}
+					exchange.complete(response);
+				}
+			}
+		} catch (IOException ex) {
+			exchange.fail(ex);
+		}
+	}
+
+	private void setDeadline(Exchange exchange, long timeout) {
+		exchange.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		timeouts.add(new Timeout(exchange));
+	}
+
+	private void checkTimeouts() {
+		long now = System.nanoTime();
+		while (!timeouts.isEmpty() && timeouts.peek().deadline - now <= 0) {
+			Timeout timeout = timeouts.poll();
+			Exchange exchange = timeout.exchange;
+			if (timeout.deadline != exchange.deadline) {
+				continue;
+			}
+			if (exchange.socket == null) {
+				int id = exchange.message.getHeader().getID();
+				if (exchanges.get(id) != exchange) {
+					continue;
+				}
+				if (!exchange.future.isDone() && exchange.retransmit && exchange.tries < TRIES) {
+					sendUdp(exchange);
+					continue;
+				}
+				removeExchange(exchange);
+			}
+			// Also clears out exchanges cancelled by the caller
+			exchange.fail(new SocketTimeoutException("No response from " + exchange.servers));
+		}
+	}
+
+	/**
+	 * Check that a response is for the request, as a guard against stray or spoofed responses.
+	 */
+	private static boolean matches(Message request, Message response) {
+		if (!response.getHeader().getFlag(Flags.QR)) {
+			return false;
+		}
+		Record question = request.getQuestion();
+		Record answered = response.getQuestion();
+		if (question == null || answered == null) {
+			// Error responses to updates may lack the zone section
+			return question == null || response.getRcode() != Rcode.NOERROR;
+		}
+		return question.getName().equals(answered.getName())
+				&& question.getType() == answered.getType()
+				&& question.getDClass() == answered.getDClass();
+	}
+
+	/**
+	 * An entry in the queue of deadlines.
+	 */
+	private static class Timeout implements Comparable<Timeout> {
+
+		final Exchange exchange;
+		final long deadline;
+
+		Timeout(Exchange exchange) {
+			this.exchange = exchange;
+			this.deadline = exchange.deadline;
+		}
+
+		@Override
+		public int compareTo(Timeout other) {
+			return Long.compare(deadline - other.deadline, 0);
+		}
+	}
+
+	/**
+	 * A message waiting for its response.
+	 */
+	private static class Exchange {
+
+		final Message message;
+		final List<InetSocketAddress> servers;
+		final TSIG tsig;
+		final boolean retransmit;
+		final CompletableFuture<Message> future = new CompletableFuture<Message>();
+		Port port;
+		byte[] wire;
+		int tries;
+		long deadline;
+		SocketChannel socket;
+		ByteBuffer tcpBuffer;
+
+		Exchange(Message message, List<InetSocketAddress> servers, TSIG tsig) {
+			this.message = message;
+			this.servers = servers;
+			this.tsig = tsig;
+			this.retransmit = message.getHeader().getOpcode() == Opcode.QUERY;
+		}
+
+		/**
+		 * Check the signature of a response to a signed message, whatever its rcode.
+		 * @return true if the message isn't signed or the response signature is valid.
+		 */
+		boolean verify(Message response, byte[] bytes) {
+			if (tsig == null) {
+				return true;
+			}
+			int error = tsig.verify(response, bytes, message.getTSIG());
+			if (error != Rcode.NOERROR) {
+				logger.log(Level.FINE, "TSIG verification of response failed: {0}", Rcode.TSIGstring(error));
+				return false;
+			}
+			return true;
+		}
+
+		void complete(Message response) {
+			future.complete(response);
+		}
+
+		void fail(IOException ex) {
+			closeSocket();
+			future.completeExceptionally(ex);
+		}
+
+		void closeSocket() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException ex) {
+					logger.log(Level.FINE, "Failed to close socket", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A datagram channel, of the pool or of a single exchange. Only used by the transport thread.
+	 */
+	private class Port {
+
+		final DatagramChannel channel;
+		final Exchange exchange;
+		int uses;
+		int outstanding;
+		boolean retired;
+
+		/**
+		 * Create a channel for the pool.
+		 */
+		Port() throws IOException {
+			this(null, null);
+		}
+
+		/**
+		 * Create a channel for a single exchange, connected to the server.
+		 * It is closed when the exchange is done.
+		 */
+		Port(Exchange exchange, InetSocketAddress server) throws IOException {
+			this.exchange = exchange;
+			channel = DatagramChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+				channel.bind(null);
+				if (server != null) {
+					channel.connect(server);
+					outstanding = 1;
+					retired = true;
+				}
+				channel.register(selector, SelectionKey.OP_READ, this);
+			} catch (IOException ex) {
+				channel.close();
+				throw ex;
+			}
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				logger.log(Level.FINE, "Failed to close channel", ex);
+			}
+		}
+	}
+
+}
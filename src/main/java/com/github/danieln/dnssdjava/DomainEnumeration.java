@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The browsing and registration domains found by a {@link DnsSDDomainEnumerator},
+ * all found at the same time.
+ * The enumeration expires when the first of the DNS records it was made from
+ * expires, a new enumeration should then be made.
+ * <p>
+ * Instances of the class are immutable.
+ * @author Daniel Nilsson
+ * @see DnsSDDomainEnumerator#enumerate()
+ */
+public class DomainEnumeration {
+
+	/**
+	 * The time to live in seconds of enumerations made without knowing the TTL of the records.
+	 */
+	static final long DEFAULT_TTL = 60;
+
+	private final List<String> browsingDomains;
+	private final String defaultBrowsingDomain;
+	private final List<String> registeringDomains;
+	private final String defaultRegisteringDomain;
+	private final List<String> legacyBrowsingDomains;
+	private final long expires;
+
+	/**
+	 * Create a new DomainEnumeration.
+	 * @param browsingDomains the domains recommended for browsing.
+	 * @param defaultBrowsingDomain the default browsing domain, or null if there is none.
+	 * @param registeringDomains the domains recommended for registering services.
+	 * @param defaultRegisteringDomain the default registering domain, or null if there is none.
+	 * @param legacyBrowsingDomains the legacy browsing domains.
+	 * @param ttl the time to live in seconds.
+	 */
+	DomainEnumeration(Collection<String> browsingDomains, String defaultBrowsingDomain,
+			Collection<String> registeringDomains, String defaultRegisteringDomain,
+			Collection<String> legacyBrowsingDomains, long ttl) {
+		this.browsingDomains = Collections.unmodifiableList(new ArrayList<String>(browsingDomains));
+		this.defaultBrowsingDomain = defaultBrowsingDomain;
+		this.registeringDomains = Collections.unmodifiableList(new ArrayList<String>(registeringDomains));
+		this.defaultRegisteringDomain = defaultRegisteringDomain;
+		this.legacyBrowsingDomains = Collections.unmodifiableList(new ArrayList<String>(legacyBrowsingDomains));
+		this.expires = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl);
+	}
+
+	/**
+	 * Get the list of domains recommended for browsing.
+	 * @return an unmodifiable list of domain names.
+	 */
+	public List<String> getBrowsingDomains() {
+		return browsingDomains;
+	}
+
+	/**
+	 * Get the recommended default domain for browsing.
+	 * @return a domain name, or null if there is none.
+	 */
+	public String getDefaultBrowsingDomain() {
+		return defaultBrowsingDomain;
+	}
+
+	/**
+	 * Get the list of domains recommended for registering services.
+	 * @return an unmodifiable list of domain names.
+	 */
+	public List<String> getRegisteringDomains() {
+		return registeringDomains;
+	}
+
+	/**
+	 * Get the recommended default domain for registering services.
+	 * @return a domain name, or null if there is none.
+	 */
+	public String getDefaultRegisteringDomain() {
+		return defaultRegisteringDomain;
+	}
+
+	/**
+	 * Get the "legacy browsing" or "automatic browsing" domains.
+	 * @return an unmodifiable list of domain names.
+	 */
+	public List<String> getLegacyBrowsingDomains() {
+		return legacyBrowsingDomains;
+	}
+
+	/**
+	 * Get the time until the enumeration expires.
+	 * @param unit the unit of the result.
+	 * @return the time to live, zero if the enumeration has expired.
+	 */
+	public long getTimeToLive(TimeUnit unit) {
+		return unit.convert(Math.max(0, expires - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Check if the enumeration has expired.
+	 * @return true if the enumeration has expired.
+	 */
+	public boolean isExpired() {
+		return expires - System.nanoTime() <= 0;
+	}
+
+	@Override
+	public String toString() {
+		return "DomainEnumeration[browsing=" + browsingDomains + ", defaultBrowsing=" + defaultBrowsingDomain
+				+ ", registering=" + registeringDomains + ", defaultRegistering=" + defaultRegisteringDomain
+				+ ", legacyBrowsing=" + legacyBrowsingDomains + "]";
+	}
+
+}
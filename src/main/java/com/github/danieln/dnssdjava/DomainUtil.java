@@ -5,6 +5,7 @@
  */
 package com.github.danieln.dnssdjava;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
@@ -12,15 +13,27 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.xbill.DNS.Address;
+import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
+import org.xbill.DNS.PTRRecord;
+import org.xbill.DNS.Record;
 import org.xbill.DNS.ReverseMap;
+import org.xbill.DNS.Section;
 import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
 
 /**
  * Internal helper class for figuring out domain names.
@@ -30,74 +43,179 @@ class DomainUtil {
 
 	private static final Logger logger = Logger.getLogger(DomainUtil.class.getName());
 
+	/**
+	 * The host names of the addresses of the computer, by address key
+	 * (see {@link NetworkWatcher#getKey(InterfaceAddress)}). An empty string
+	 * means the address has no host name.
+	 */
+	private static final Map<String, String> hostNames = new HashMap<String, String>();
+
 	/**
 	 * Try to figure out the domain name for the computer.
+	 * <p>
+	 * The candidates are, in order of how likely they are to have DNS-SD records:
+	 * the domains of the host names of the computer, then the reverse lookup names
+	 * of its IPv4 networks, then those of its IPv6 networks (RFC 6763 chapter 11).
+	 * Duplicates are removed. Link-local addresses are skipped, they are only
+	 * meaningful on their own link and never have reverse zones.
+	 * @param dnsClient the client used for the reverse lookups.
+	 * @param timeout the maximum time to wait for each lookup, in milliseconds.
 	 * @return a list of potential domain names.
+	 * @see #lookupHostNames(List, DnsClient, long)
 	 */
-	static List<String> getComputerDomains() {
+	static List<String> getComputerDomains(DnsClient dnsClient, long timeout) {
 		String domain = System.getProperty("dnssd.domain");
 		if (domain != null) {
 			return Collections.singletonList(domain);
 		}
-		List<String> results = new ArrayList<String>();
-		try {
-			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-			while (interfaces.hasMoreElements()) {
-				NetworkInterface i = interfaces.nextElement();
-				if (i.isUp() && !i.isLoopback()) {
-					for (InterfaceAddress ifaddr : i.getInterfaceAddresses()) {
-						InetAddress inetAddr = ifaddr.getAddress();
-						try {
-							// Try to figure out the domain by taking the host name...
-							String hostname = Address.getHostName(inetAddr);
-							// ...and remove the leftmost part.
-							results.add(new Name(new Name(hostname), 1).toString());
-						} catch (TextParseException ex) {
-							logger.log(Level.WARNING, "Bad hostname", ex);
-						} catch (UnknownHostException ex) {
-							logger.log(Level.FINE, "No hostname for address: {0}", inetAddr);
-						}
-						try {
-							// Use the reverse lookup name for the network
-							InetAddress network = calculateNetworkAddress(ifaddr);
-							Name revName = ReverseMap.fromAddress(network);
-							results.add(revName.toString());
-						} catch (UnknownHostException ex) {
-							logger.log(Level.WARNING, "Failed to calculate network address", ex);
-						}
+		List<InterfaceAddress> ifaddrs = new ArrayList<InterfaceAddress>();
+		for (InterfaceAddress ifaddr : getInterfaceAddresses()) {
+			if (!ifaddr.getAddress().isLinkLocalAddress()) {
+				ifaddrs.add(ifaddr);
+			}
+		}
+		List<String> names = lookupHostNames(ifaddrs, dnsClient, timeout);
+		Set<String> hostDomains = new LinkedHashSet<String>();
+		Set<String> ipv4Networks = new LinkedHashSet<String>();
+		Set<String> ipv6Networks = new LinkedHashSet<String>();
+		for (int n = 0; n < ifaddrs.size(); n++) {
+			if (names.get(n) != null) {
+				try {
+					// Try to figure out the domain by taking the host name...
+					// ...and remove the leftmost part.
+					Name name = new Name(new Name(names.get(n)), 1);
+					if (!name.equals(Name.root)) {
+						hostDomains.add(name.toString());
 					}
+				} catch (TextParseException ex) {
+					logger.log(Level.WARNING, "Bad hostname", ex);
 				}
 			}
-		} catch (SocketException ex) {
-			logger.log(Level.WARNING, "Failed to enumerate network interfaces", ex);
+			try {
+				// Use the reverse lookup name for the network
+				InetAddress network = calculateNetworkAddress(ifaddrs.get(n));
+				Name revName = ReverseMap.fromAddress(network);
+				(network instanceof Inet4Address ? ipv4Networks : ipv6Networks).add(revName.toString());
+			} catch (UnknownHostException ex) {
+				logger.log(Level.WARNING, "Failed to calculate network address", ex);
+			}
 		}
-		return results;
+		Set<String> results = new LinkedHashSet<String>(hostDomains);
+		results.addAll(ipv4Networks);
+		results.addAll(ipv6Networks);
+		return new ArrayList<String>(results);
 	}
 
 	/**
 	 * Try to figure out the host name for the computer.
+	 * @param dnsClient the client used for the reverse lookups.
+	 * @param timeout the maximum time to wait for each lookup, in milliseconds.
 	 * @return a list of potential host names.
+	 * @see #lookupHostNames(List, DnsClient, long)
 	 */
-	static List<String> getComputerHostNames() {
+	static List<String> getComputerHostNames(DnsClient dnsClient, long timeout) {
 		String hostname = System.getProperty("dnssd.hostname");
 		if (hostname != null) {
 			return Collections.singletonList(hostname);
 		}
 		List<String> results = new ArrayList<String>();
+		for (String name : lookupHostNames(getInterfaceAddresses(), dnsClient, timeout)) {
+			if (name != null) {
+				results.add(name);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Look up the host names of interface addresses.
+	 * The lookups are done in parallel, addresses whose lookup takes longer than the
+	 * timeout are skipped. The host names found are remembered until the address
+	 * goes away, see {@link #forgetHostNames(Collection)}.
+	 * @param ifaddrs the interface addresses.
+	 * @param dnsClient the client used for the reverse lookups.
+	 * @param timeout the maximum time to wait for each lookup, in milliseconds.
+	 * @return the host name of each address, null if it has none or the lookup failed.
+	 */
+	private static List<String> lookupHostNames(List<InterfaceAddress> ifaddrs, DnsClient dnsClient, long timeout) {
+		List<String> keys = new ArrayList<String>(ifaddrs.size());
+		List<String> results = new ArrayList<String>(ifaddrs.size());
+		List<CompletableFuture<Message>> lookups = new ArrayList<CompletableFuture<Message>>(ifaddrs.size());
+		for (InterfaceAddress ifaddr : ifaddrs) {
+			String key = NetworkWatcher.getKey(ifaddr);
+			String cached;
+			synchronized (hostNames) {
+				cached = hostNames.get(key);
+			}
+			keys.add(key);
+			results.add(cached);
+			if (cached == null) {
+				Name name = ReverseMap.fromAddress(ifaddr.getAddress());
+				lookups.add(DnsSDFutures.withTimeout(dnsClient.query(name, Type.PTR), timeout, TimeUnit.MILLISECONDS));
+			} else {
+				lookups.add(null);
+			}
+		}
+		for (int n = 0; n < ifaddrs.size(); n++) {
+			InetAddress inetAddr = ifaddrs.get(n).getAddress();
+			if (lookups.get(n) == null) {
+				continue;
+			}
+			try {
+				Message response = lookups.get(n).get();
+				Record[] records = DnsClient.getRecords(response, Section.ANSWER, ReverseMap.fromAddress(inetAddr), Type.PTR);
+				String name = "";
+				if (records.length > 0) {
+					name = ((PTRRecord) records[0]).getTarget().toString();
+				} else {
+					logger.log(Level.FINE, "No hostname for address: {0}", inetAddr);
+				}
+				synchronized (hostNames) {
+					hostNames.put(keys.get(n), name);
+				}
+				results.set(n, name);
+			} catch (ExecutionException ex) {
+				logger.log(Level.FINE, "No hostname for address {0}: {1}", new Object[] { inetAddr, ex.getCause() });
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				for (CompletableFuture<Message> lookup : lookups) {
+					if (lookup != null) {
+						lookup.cancel(true);
+					}
+				}
+				break;
+			}
+		}
+		for (int n = 0; n < results.size(); n++) {
+			if ("".equals(results.get(n))) {
+				results.set(n, null);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Forget the host names of addresses that have gone away.
+	 * @param keys the address keys, see {@link NetworkWatcher#getKey(InterfaceAddress)}.
+	 */
+	static void forgetHostNames(Collection<String> keys) {
+		synchronized (hostNames) {
+			hostNames.keySet().removeAll(keys);
+		}
+	}
+
+	/**
+	 * Get the addresses of the network interfaces that are up, except the loopback interface.
+	 * @return the interface addresses.
+	 */
+	static List<InterfaceAddress> getInterfaceAddresses() {
+		List<InterfaceAddress> results = new ArrayList<InterfaceAddress>();
 		try {
 			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
 			while (interfaces.hasMoreElements()) {
 				NetworkInterface i = interfaces.nextElement();
 				if (i.isUp() && !i.isLoopback()) {
-					for (InterfaceAddress ifaddr : i.getInterfaceAddresses()) {
-						InetAddress inetAddr = ifaddr.getAddress();
-						try {
-							hostname = Address.getHostName(inetAddr);
-							results.add(hostname);
-						} catch (UnknownHostException ex) {
-							logger.log(Level.FINE, "No hostname for address: {0}", inetAddr);
-						}
-					}
+					results.addAll(i.getInterfaceAddresses());
 				}
 			}
 		} catch (SocketException ex) {
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Internal least recently used cache where each entry expires after its own time to live.
+ * The size of the cache is bounded by the total weight of the entries. The weight
+ * is roughly the number of DNS records an entry was made from, which makes the bound
+ * follow the memory used better than a plain entry count does.
+ * <p>
+ * Expired entries can be kept for a stale period, during which they are
+ * still available from {@link #getStale(Object)}.
+ * @author Daniel Nilsson
+ */
+class ExpiringCache<K, V> {
+
+	private final int maxWeight;
+	private final long staleNanos;
+	private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+	private int weight;
+	private long hits;
+	private long misses;
+	private long staleHits;
+	private long evictions;
+
+	/**
+	 * Create a new ExpiringCache.
+	 * @param maxWeight the maximum total weight of all entries, zero disables the cache.
+	 */
+	ExpiringCache(int maxWeight) {
+		this(maxWeight, 0);
+	}
+
+	/**
+	 * Create a new ExpiringCache that keeps expired entries for a while.
+	 * @param maxWeight the maximum total weight of all entries, zero disables the cache.
+	 * @param staleTime the time in seconds expired entries are kept.
+	 */
+	ExpiringCache(int maxWeight, long staleTime) {
+		this.maxWeight = maxWeight;
+		this.staleNanos = TimeUnit.SECONDS.toNanos(staleTime);
+	}
+
+	/**
+	 * Get a value from the cache.
+	 * @param key the key.
+	 * @return the value, or null if there is no value or it has expired.
+	 */
+	synchronized V get(K key) {
+		Entry<V> entry = getEntry(key);
+		if (entry == null || entry.isExpired(System.nanoTime())) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value;
+	}
+
+	/**
+	 * Get a value that has expired but is still within the stale period.
+	 * Stale hits are counted separately, the preceding {@link #get(Object)}
+	 * has already counted a miss.
+	 * @param key the key.
+	 * @return the stale value, or null if there is no value or it hasn't expired.
+	 */
+	synchronized V getStale(K key) {
+		Entry<V> entry = getEntry(key);
+		if (entry == null || !entry.isExpired(System.nanoTime())) {
+			return null;
+		}
+		staleHits++;
+		return entry.value;
+	}
+
+	/**
+	 * Get the time until a value expires, without counting it as a lookup.
+	 * @param key the key.
+	 * @return the time in nanoseconds, zero if the value has expired, or -1 if there is no value.
+	 */
+	synchronized long getTimeToLive(K key) {
+		Entry<V> entry = getEntry(key);
+		if (entry == null) {
+			return -1;
+		}
+		return Math.max(0, entry.expires - System.nanoTime());
+	}
+
+	/**
+	 * Put a value in the cache.
+	 * If the cache is full the least recently used entries are evicted.
+	 * @param key the key.
+	 * @param value the value.
+	 * @param ttl the time to live in seconds, the value is not cached if it is zero or less.
+	 * @param weight the weight of the entry, at least one.
+	 */
+	synchronized void put(K key, V value, long ttl, int weight) {
+		weight = Math.max(1, weight);
+		if (ttl <= 0 || weight > maxWeight) {
+			removeEntry(key);
+			return;
+		}
+		long expires = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl);
+		Entry<V> old = map.put(key, new Entry<V>(value, expires, weight));
+		if (old != null) {
+			this.weight -= old.weight;
+		}
+		this.weight += weight;
+		evict();
+	}
+
+	/**
+	 * Remove a value from the cache.
+	 * @param key the key.
+	 */
+	synchronized void remove(K key) {
+		removeEntry(key);
+	}
+
+	/**
+	 * Remove all values from the cache.
+	 */
+	synchronized void clear() {
+		map.clear();
+		weight = 0;
+	}
+
+	/**
+	 * Get the cache statistics.
+	 * @return a snapshot of the statistics.
+	 */
+	synchronized CacheStatistics getStatistics() {
+		return new CacheStatistics(hits, misses, staleHits, evictions, map.size(), weight, maxWeight);
+	}
+
+	/**
+	 * Get an entry, removing it if the stale period has passed.
+	 * @param key the key.
+	 * @return the entry, or null if there is none.
+	 */
+	private Entry<V> getEntry(K key) {
+		Entry<V> entry = map.get(key);
+		if (entry != null && entry.isExpired(System.nanoTime() - staleNanos)) {
+			removeEntry(key);
+			entry = null;
+		}
+		return entry;
+	}
+
+	private void removeEntry(K key) {
+		Entry<V> entry = map.remove(key);
+		if (entry != null) {
+			weight -= entry.weight;
+		}
+	}
+
+	/**
+	 * Evict the least recently used entries until the total weight is within bounds.
+	 */
+	private void evict() {
+		long now = System.nanoTime();
+		Iterator<Entry<V>> it = map.values().iterator();
+		while (weight > maxWeight && it.hasNext()) {
+			Entry<V> entry = it.next();
+			it.remove();
+			weight -= entry.weight;
+			if (!entry.isExpired(now)) {
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * A cached value.
+	 */
+	private static class Entry<V> {
+
+		final V value;
+		final long expires;
+		final int weight;
+
+		Entry(V value, long expires, int weight) {
+			this.value = value;
+			this.expires = expires;
+			this.weight = weight;
+		}
+
+		boolean isExpired(long now) {
+			return now - expires >= 0;
+		}
+	}
+
+}
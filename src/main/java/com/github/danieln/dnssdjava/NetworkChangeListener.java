@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+/**
+ * Listener for changes to the network configuration of the computer.
+ * The method is called from a background thread and should return quickly.
+ * @author Daniel Nilsson
+ * @see DnsSDFactory#addNetworkChangeListener(NetworkChangeListener)
+ */
+public interface NetworkChangeListener {
+
+	/**
+	 * Called when network interfaces or their addresses have come or gone.
+	 * The computer domains and host names may have changed, browsers and
+	 * registrators created for the old ones may need to be replaced.
+	 */
+	void networkChanged();
+
+}
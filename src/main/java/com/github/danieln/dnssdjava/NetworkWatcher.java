@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.net.InterfaceAddress;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.ResolverConfig;
+
+/**
+ * Internal class that watches the network interfaces of the computer for changes.
+ * <p>
+ * The interface addresses are enumerated every "dnssd.network.interval" milliseconds
+ * (system property) on the shared scheduler. Enumerating them only asks the operating
+ * system, no network traffic is involved. Each change increments a generation number,
+ * so that things derived from the network configuration can be cached together with
+ * the generation and checked cheaply, and the listeners are told which addresses
+ * were removed and added. The DNS servers and search path of dnsjava's
+ * {@link ResolverConfig} are read again on each change, before the generation
+ * is incremented.
+ * @author Daniel Nilsson
+ */
+class NetworkWatcher {
+
+	private static final Logger logger = Logger.getLogger(NetworkWatcher.class.getName());
+
+	/**
+	 * The default time between checks of the network interfaces, in milliseconds.
+	 */
+	private static final long DEFAULT_INTERVAL = 5000;
+
+	private static NetworkWatcher instance;
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private volatile Set<String> addresses;
+	private volatile long generation;
+
+	private NetworkWatcher() {
+		addresses = getAddresses(DomainUtil.getInterfaceAddresses());
+		long interval = Long.getLong("dnssd.network.interval", DEFAULT_INTERVAL);
+		DnsSDExecutors.scheduler().scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the shared network watcher, starting it the first time.
+	 * @return the network watcher.
+	 */
+	static synchronized NetworkWatcher getInstance() {
+		if (instance == null) {
+			instance = new NetworkWatcher();
+		}
+		return instance;
+	}
+
+	/**
+	 * Listener for network changes.
+	 */
+	interface Listener {
+
+		/**
+		 * Called from the timer thread when the interface addresses have changed.
+		 * Must return quickly, work that takes time should be done on another thread.
+		 * @param removed the addresses that are gone, see {@link NetworkWatcher#getKey(InterfaceAddress)}.
+		 * @param added the new addresses.
+		 */
+		void networkChanged(Set<String> removed, Set<String> added);
+	}
+
+	/**
+	 * Add a listener.
+	 * @param listener the listener.
+	 */
+	void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener.
+	 * @param listener the listener.
+	 */
+	void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Get the generation of the network configuration, incremented on every change.
+	 * @return the generation.
+	 */
+	long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Get the key identifying an interface address, its address and prefix length.
+	 * @param ifaddr the interface address.
+	 * @return the key.
+	 */
+	static String getKey(InterfaceAddress ifaddr) {
+		return ifaddr.getAddress().getHostAddress() + "/" + ifaddr.getNetworkPrefixLength();
+	}
+
+	private static Set<String> getAddresses(List<InterfaceAddress> ifaddrs) {
+		Set<String> keys = new LinkedHashSet<String>();
+		for (InterfaceAddress ifaddr : ifaddrs) {
+			keys.add(getKey(ifaddr));
+		}
+		return Collections.unmodifiableSet(keys);
+	}
+
+	private void check() {
+		// An exception would stop the checks for good
+		try {
+			checkAddresses();
+		} catch (RuntimeException ex) {
+			logger.log(Level.WARNING, "Failed to check the network configuration", ex);
+		}
+	}
+
+	private void checkAddresses() {
+		Set<String> current = getAddresses(DomainUtil.getInterfaceAddresses());
+		Set<String> previous = addresses;
+		if (current.equals(previous)) {
+			return;
+		}
+		Set<String> removed = new LinkedHashSet<String>(previous);
+		removed.removeAll(current);
+		Set<String> added = new LinkedHashSet<String>(current);
+		added.removeAll(previous);
+		addresses = current;
+		ResolverConfig.refresh();
+		generation++;
+		logger.log(Level.INFO, "Network changed, removed addresses {0}, added {1}", new Object[] { removed, added });
+		DomainUtil.forgetHostNames(removed);
+		for (Listener listener : listeners) {
+			try {
+				listener.networkChanged(removed, added);
+			} catch (RuntimeException ex) {
+				logger.log(Level.WARNING, "Network change listener failed", ex);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+
+/**
+ * Internal interface for a connection to a DNS server that tells about changes
+ * to record sets, so they don't have to be queried over and over again.
+ * Implemented for DNS Push Notifications ({@link DnsPushSession}) and
+ * DNS Long-Lived Queries ({@link DnsLlqClient}).
+ * @author Daniel Nilsson
+ */
+interface RecordNotifier {
+
+	/**
+	 * Subscribe to a record set.
+	 * The listener is called when the current records have been received,
+	 * and then on every change.
+	 * @param name the name of the records.
+	 * @param type the type of the records.
+	 * @param listener called from a background thread when the records have changed.
+	 * @return a future for the subscription, fails with an IOException if the server refuses it.
+	 */
+	CompletableFuture<Subscription> subscribe(Name name, int type, Runnable listener);
+
+	/**
+	 * Add a listener to call when the connection is lost or closed.
+	 * The subscriptions are gone when this happens.
+	 * The listener is called at once if the connection is already closed.
+	 * @param listener the listener.
+	 */
+	void addCloseListener(Runnable listener);
+
+	/**
+	 * Check if the connection is closed.
+	 * @return true if the connection is closed.
+	 */
+	boolean isClosed();
+
+	/**
+	 * A subscription to a record set, holding the current records.
+	 */
+	interface Subscription {
+
+		/**
+		 * Get the current records.
+		 * @return an array of records, empty if there are none.
+		 */
+		Record[] getRecords();
+
+		/**
+		 * Get the notifier the subscription belongs to.
+		 * @return the notifier.
+		 */
+		RecordNotifier getNotifier();
+
+		/**
+		 * Cancel the subscription.
+		 */
+		void cancel();
+	}
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Internal helper class for choosing which of several servers to send a message to.
+ * <p>
+ * The servers are tried in the order given by their SRV priority and weight (RFC 2782),
+ * with a new random order among servers of the same priority each time, so that the
+ * load is spread over them in proportion to their weights. Servers that recently
+ * failed are tried last until they have rested for a while, longer the more
+ * times in a row they have failed.
+ * @author Daniel Nilsson
+ */
+class ServerSelector {
+
+	/**
+	 * How long a server is passed over after its first failure, in milliseconds.
+	 * Doubled for every failure in a row.
+	 */
+	private static final long MIN_BACKOFF = 5000;
+
+	/**
+	 * The longest time a server is passed over, in milliseconds.
+	 */
+	private static final long MAX_BACKOFF = 300000;
+
+	private final List<Server> servers = new ArrayList<Server>();
+
+	/**
+	 * Create a ServerSelector for servers of equal priority and weight.
+	 * @param addresses the server addresses.
+	 */
+	ServerSelector(List<InetSocketAddress> addresses) {
+		for (InetSocketAddress address : addresses) {
+			add(address, 0, 0);
+		}
+	}
+
+	/**
+	 * Add a server.
+	 * @param address the server address.
+	 * @param priority the priority of the server, lower is tried first.
+	 * @param weight the relative weight among servers with the same priority.
+	 */
+	synchronized void add(InetSocketAddress address, int priority, int weight) {
+		servers.add(new Server(address, priority, weight));
+	}
+
+	/**
+	 * Check if there are no servers.
+	 * @return true if there are no servers.
+	 */
+	synchronized boolean isEmpty() {
+		return servers.isEmpty();
+	}
+
+	/**
+	 * Get the servers in the order they should be tried this time.
+	 * @return the server addresses.
+	 */
+	synchronized List<InetSocketAddress> select() {
+		long now = System.nanoTime();
+		List<Server> available = new ArrayList<Server>();
+		List<Server> resting = new ArrayList<Server>();
+		for (Server server : servers) {
+			if (server.failures > 0 && now - server.retryAt < 0) {
+				resting.add(server);
+			} else {
+				available.add(server);
+			}
+		}
+		Collections.sort(available, Comparator.comparingInt(s -> s.priority));
+		List<InetSocketAddress> result = new ArrayList<InetSocketAddress>(servers.size());
+		for (int i = 0; i < available.size(); ) {
+			int end = i;
+			while (end < available.size() && available.get(end).priority == available.get(i).priority) {
+				end++;
+			}
+			shuffleByWeight(available.subList(i, end), result);
+			i = end;
+		}
+		// The ones resting for the shortest time first
+		Collections.sort(resting, (a, b) -> Long.signum(a.retryAt - b.retryAt));
+		for (Server server : resting) {
+			result.add(server.address);
+		}
+		return result;
+	}
+
+	/**
+	 * Order servers of the same priority by the weighted random selection of RFC 2782.
+	 */
+	private static void shuffleByWeight(List<Server> group, List<InetSocketAddress> result) {
+		List<Server> left = new ArrayList<Server>(group);
+		// Servers with weight 0 first, so they have a very small chance of being picked
+		Collections.sort(left, Comparator.comparingInt(s -> s.weight));
+		while (!left.isEmpty()) {
+			int total = 0;
+			for (Server server : left) {
+				total += server.weight;
+			}
+			int pick = ThreadLocalRandom.current().nextInt(total + 1);
+			int sum = 0;
+			for (int i = 0; i < left.size(); i++) {
+				sum += left.get(i).weight;
+				if (sum >= pick) {
+					result.add(left.remove(i).address);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record that a server responded.
+	 * @param address the server address.
+	 */
+	synchronized void succeeded(InetSocketAddress address) {
+		Server server = find(address);
+		if (server != null) {
+			server.failures = 0;
+		}
+	}
+
+	/**
+	 * Record that a server failed to respond, or failed to handle the message.
+	 * @param address the server address.
+	 */
+	synchronized void failed(InetSocketAddress address) {
+		Server server = find(address);
+		if (server != null) {
+			long backoff = MIN_BACKOFF << Math.min(server.failures, 16);
+			server.failures++;
+			server.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(backoff, MAX_BACKOFF));
+		}
+	}
+
+	private Server find(InetSocketAddress address) {
+		for (Server server : servers) {
+			if (server.address.equals(address)) {
+				return server;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized String toString() {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(servers.size());
+		for (Server server : servers) {
+			addresses.add(server.address);
+		}
+		return addresses.toString();
+	}
+
+	/**
+	 * A server and what is known about it.
+	 */
+	private static class Server {
+
+		private final InetSocketAddress address;
+		private final int priority;
+		private final int weight;
+
+		/**
+		 * The number of failures in a row, and when to try the server again.
+		 */
+		private int failures;
+		private long retryAt;
+
+		Server(InetSocketAddress address, int priority, int weight) {
+			this.address = address;
+			this.priority = priority;
+			this.weight = weight;
+		}
+	}
+
+}
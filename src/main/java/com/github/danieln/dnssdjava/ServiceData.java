@@ -43,6 +43,18 @@ public class ServiceData {
 		this.port = port;
 	}
 
+	/**
+	 * Create a copy of a ServiceData object.
+	 * The copy has its own property map.
+	 * @param other the ServiceData to copy.
+	 */
+	public ServiceData(ServiceData other) {
+		this.name = other.name;
+		this.host = other.host;
+		this.port = other.port;
+		this.properties.putAll(other.properties);
+	}
+
 	/**
 	 * Get the name of the service.
 	 * @return the service name.
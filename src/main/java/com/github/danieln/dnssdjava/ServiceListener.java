@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+/**
+ * Listener for changes to the service instances of a type.
+ * The methods are called from a background thread, one call at a time,
+ * and should return quickly.
+ * @author Daniel Nilsson
+ * @see DnsSDBrowser#watch(ServiceType, ServiceListener)
+ */
+public interface ServiceListener {
+
+	/**
+	 * Called when a service instance has been found.
+	 * @param service the service data of the new instance.
+	 */
+	void serviceAdded(ServiceData service);
+
+	/**
+	 * Called when a service instance has disappeared.
+	 * @param service the last known service data of the instance.
+	 */
+	void serviceRemoved(ServiceData service);
+
+	/**
+	 * Called when the host, port or properties of a service instance have changed.
+	 * @param service the new service data of the instance.
+	 */
+	void serviceChanged(ServiceData service);
+
+}
@@ -29,6 +29,12 @@ public class ServiceName {
 	private final ServiceType type;
 	private final String domain;
 
+	/**
+	 * The name as a dnsjava {@link Name}, made the first time it's needed.
+	 * Not part of the value of the ServiceName.
+	 */
+	private volatile Name dnsName;
+
 	/**
 	 * Create a new ServiceName.
 	 * @param name the name of the service.
@@ -41,6 +47,11 @@ public class ServiceName {
 		this.domain = domain;
 	}
 
+	private ServiceName(String name, ServiceType type, String domain, Name dnsName) {
+		this(name, type, domain);
+		this.dnsName = dnsName;
+	}
+
 	/**
 	 * Get the service name.
 	 * @return the service name.
@@ -145,22 +156,29 @@ public class ServiceName {
 	/**
 	 * Convert to a dnsjava {@link Name}.
 	 * This is an internal helper method.
+	 * The Name is only made once, it is used for every lookup and update
+	 * of the service.
 	 * @return the ServiceName as a Name.
 	 */
 	Name toDnsName() {
-		try {
-			Name dnsname = Name.fromString(domain);
-			dnsname = Name.fromString(type.getTransport().getLabel(), dnsname);
-			dnsname = Name.fromString(type.getType(), dnsname);
-			dnsname = Name.concatenate(new Name(encodeName(name)).relativize(Name.root), dnsname);
-			return dnsname;
-		} catch (IOException ex) {
-			throw new IllegalArgumentException("Invalid DNS name", ex);
+		Name dnsname = dnsName;
+		if (dnsname == null) {
+			try {
+				dnsname = Name.fromString(domain);
+				dnsname = Name.fromString(type.getTransport().getLabel(), dnsname);
+				dnsname = Name.fromString(type.getType(), dnsname);
+				dnsname = Name.concatenate(new Name(encodeName(name)).relativize(Name.root), dnsname);
+			} catch (IOException ex) {
+				throw new IllegalArgumentException("Invalid DNS name", ex);
+			}
+			dnsName = dnsname;
 		}
+		return dnsname;
 	}
 
 	/**
 	 * Make a new ServiceName from a dnsjava {@link Name}.
+	 * The Name is kept and returned by {@link #toDnsName()}.
 	 * @param dnsname the Name to convert.
 	 * @return the Name as a ServiceName.
 	 */
@@ -172,7 +190,7 @@ public class ServiceName {
 		String type = dnsname.getLabelString(1);
 		String transport = dnsname.getLabelString(2);
 		String domain = new Name(dnsname, 3).toString();
-		return new ServiceName(name, new ServiceType(type, transport), domain);
+		return new ServiceName(name, new ServiceType(type, transport), domain, dnsname);
 	}
 
 	/**
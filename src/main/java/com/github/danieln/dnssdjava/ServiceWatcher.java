@@ -0,0 +1,499 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.Name;
+import org.xbill.DNS.PTRRecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+import com.github.danieln.dnssdjava.RecordNotifier.Subscription;
+
+/**
+ * Internal class that keeps a live view of the service instances of a type
+ * for the listeners of {@link DnsSDBrowser#watch(ServiceType, ServiceListener)}.
+ * <p>
+ * If all browsing domains have a DNS Push or Long-Lived Query server the watcher
+ * subscribes to the PTR records of the type, and to the SRV and TXT records of every
+ * instance, and the server tells about every change. Otherwise, or if a server is lost,
+ * the instances are browsed and resolved again when the first of the cached
+ * records expire. Either way the listeners are told about the differences.
+ * Events are queued and delivered on the executor of the browser, outside of any lock,
+ * one at a time, in the order the changes were seen.
+ * @author Daniel Nilsson
+ */
+class ServiceWatcher {
+
+	private static final Logger logger = Logger.getLogger(ServiceWatcher.class.getName());
+
+	/**
+	 * The minimum time between two queries, in milliseconds.
+	 */
+	private static final long MIN_INTERVAL = 1000;
+
+	/**
+	 * The time between queries when the TTL of the records isn't known, in milliseconds.
+	 */
+	private static final long DEFAULT_INTERVAL = 60000;
+
+	/**
+	 * The time to wait before trying again after a failed query, in milliseconds.
+	 */
+	private static final long RETRY_INTERVAL = 10000;
+
+	/**
+	 * How long to wait for the TXT record of an instance to be pushed before
+	 * querying for it, in milliseconds.
+	 */
+	private static final long TXT_WAIT = 1000;
+
+	private final UnicastDnsSDBrowser browser;
+	private final ServiceType type;
+	private final List<ServiceListener> listeners = new ArrayList<ServiceListener>();
+	private final Queue<Event> events = new ArrayDeque<Event>();
+	private Map<ServiceName, ServiceData> services = new LinkedHashMap<ServiceName, ServiceData>();
+	private ScheduledFuture<?> scheduled;
+	private CompletableFuture<Map<ServiceName, ServiceData>> poll;
+	private boolean started;
+	private boolean stopped;
+	private boolean delivering;
+	private boolean pushing;
+	private final List<Subscription> typeSubscriptions = new ArrayList<Subscription>();
+	private final Map<ServiceName, InstanceSubscriptions> instanceSubscriptions = new HashMap<ServiceName, InstanceSubscriptions>();
+
+	/**
+	 * Create a new ServiceWatcher.
+	 * @param browser the browser to query.
+	 * @param type the service type to watch.
+	 */
+	ServiceWatcher(UnicastDnsSDBrowser browser, ServiceType type) {
+		this.browser = browser;
+		this.type = type;
+	}
+
+	/**
+	 * Add a listener. The listener is told about the instances already known,
+	 * from the executor of the browser like all other events.
+	 * The first listener starts the watcher.
+	 * @param listener the listener to add.
+	 * @return true if the listener was added, false if the watcher has been stopped.
+	 */
+	boolean addListener(ServiceListener listener) {
+		synchronized (this) {
+			if (stopped) {
+				return false;
+			}
+			listeners.add(listener);
+			for (ServiceData data : services.values()) {
+				events.add(new Event(listener, Event.ADDED, new ServiceData(data)));
+			}
+			if (!started) {
+				started = true;
+				logger.log(Level.FINE, "Started watching {0}", type);
+				startPush();
+			}
+		}
+		deliver();
+		return true;
+	}
+
+	/**
+	 * Remove a listener. The watcher stops when the last listener is removed.
+	 * @param listener the listener to remove.
+	 * @return true if the watcher has stopped.
+	 */
+	synchronized boolean removeListener(ServiceListener listener) {
+		listeners.remove(listener);
+		if (listeners.isEmpty() && !stopped) {
+			stopped = true;
+			if (scheduled != null) {
+				scheduled.cancel(false);
+			}
+			if (poll != null) {
+				poll.cancel(true);
+			}
+			stopPush();
+			logger.log(Level.FINE, "Stopped watching {0}", type);
+		}
+		return stopped;
+	}
+
+	private void schedule(long delay) {
+		scheduled = DnsSDExecutors.scheduler().schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void poll() {
+		CompletableFuture<Map<ServiceName, ServiceData>> future;
+		synchronized (this) {
+			if (stopped) {
+				return;
+			}
+			future = browser.browseAndResolveAsync(type, true);
+			poll = future;
+		}
+		future.whenComplete((result, ex) -> update(future, result, ex));
+	}
+
+	private void update(CompletableFuture<Map<ServiceName, ServiceData>> future, Map<ServiceName, ServiceData> result, Throwable ex) {
+		synchronized (this) {
+			if (stopped || poll != future) {
+				return;
+			}
+			poll = null;
+			if (ex != null) {
+				// Keep the current view, a failed query doesn't mean the services are gone
+				logger.log(Level.FINE, "Failed to browse {0}: {1}", new Object[] { type, DnsSDFutures.unwrap(ex) });
+				schedule(RETRY_INTERVAL);
+				return;
+			}
+			compare(result);
+			long ttl = browser.getTimeToLive(type, result.keySet());
+			schedule((ttl < 0) ? DEFAULT_INTERVAL : Math.max(MIN_INTERVAL, ttl));
+		}
+		deliver();
+	}
+
+	/**
+	 * Subscribe to the PTR records of the type in all browsing domains.
+	 * Falls back to polling if any domain lacks change notifications.
+	 */
+	private void startPush() {
+		List<CompletableFuture<Subscription>> futures = new ArrayList<CompletableFuture<Subscription>>();
+		for (Name domain : browser.getBrowserDomains()) {
+			CompletableFuture<RecordNotifier> notifier = browser.getNotifier(domain);
+			for (Name name : browser.getTypeDomainNames(type, domain)) {
+				futures.add(notifier.thenCompose(n -> n.subscribe(name, Type.PTR, this::pushed)));
+			}
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.whenComplete((v, ex) -> pushStarted(futures, ex));
+	}
+
+	private void pushStarted(List<CompletableFuture<Subscription>> futures, Throwable ex) {
+		synchronized (this) {
+			if (ex != null || stopped) {
+				for (CompletableFuture<Subscription> future : futures) {
+					future.thenAccept(Subscription::cancel);
+				}
+				if (!stopped) {
+					logger.log(Level.FINE, "Change notifications not available for {0}, polling instead: {1}",
+							new Object[] { type, DnsSDFutures.unwrap(ex) });
+					schedule(0);
+				}
+				return;
+			}
+			logger.log(Level.FINE, "Watching {0} with change notifications", type);
+			pushing = true;
+			Set<RecordNotifier> notifiers = new LinkedHashSet<RecordNotifier>();
+			for (CompletableFuture<Subscription> future : futures) {
+				Subscription subscription = future.join();
+				typeSubscriptions.add(subscription);
+				notifiers.add(subscription.getNotifier());
+			}
+			for (RecordNotifier notifier : notifiers) {
+				notifier.addCloseListener(this::pushClosed);
+			}
+		}
+		pushed();   // The initial records may have arrived already
+	}
+
+	/**
+	 * Called when a notifier is lost, switches to polling.
+	 */
+	private synchronized void pushClosed() {
+		if (!pushing || stopped) {
+			return;
+		}
+		logger.log(Level.INFO, "Change notifications lost for {0}, polling instead", type);
+		stopPush();
+		schedule(0);
+	}
+
+	private void stopPush() {
+		pushing = false;
+		for (Subscription subscription : typeSubscriptions) {
+			subscription.cancel();
+		}
+		typeSubscriptions.clear();
+		for (InstanceSubscriptions subscriptions : instanceSubscriptions.values()) {
+			subscriptions.cancel();
+		}
+		instanceSubscriptions.clear();
+	}
+
+	/**
+	 * Called when the records of a subscription have changed.
+	 * Subscribes to the SRV and TXT records of new instances and updates the view.
+	 */
+	private void pushed() {
+		synchronized (this) {
+			if (!pushing || stopped) {
+				return;
+			}
+			Map<ServiceName, RecordNotifier> instances = new LinkedHashMap<ServiceName, RecordNotifier>();
+			for (Subscription subscription : typeSubscriptions) {
+				for (Record record : subscription.getRecords()) {
+					Name target = ((PTRRecord) record).getTarget();
+					try {
+						instances.put(ServiceName.fromDnsName(target), subscription.getNotifier());
+					} catch (IllegalArgumentException e) {
+						logger.warning("Invalid service instance " + target + ": " + e.getMessage());
+					}
+				}
+			}
+			for (Iterator<Map.Entry<ServiceName, InstanceSubscriptions>> it = instanceSubscriptions.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<ServiceName, InstanceSubscriptions> entry = it.next();
+				if (!instances.containsKey(entry.getKey())) {
+					entry.getValue().cancel();
+					it.remove();
+				}
+			}
+			Map<ServiceName, ServiceData> result = new LinkedHashMap<ServiceName, ServiceData>();
+			for (Map.Entry<ServiceName, RecordNotifier> entry : instances.entrySet()) {
+				ServiceName service = entry.getKey();
+				InstanceSubscriptions subscriptions = instanceSubscriptions.get(service);
+				if (subscriptions == null) {
+					subscriptions = new InstanceSubscriptions(entry.getValue(), service.toDnsName());
+					instanceSubscriptions.put(service, subscriptions);
+				}
+				ServiceData data = subscriptions.getServiceData(service);
+				if (data == null) {
+					// Keep the last known data while a record set is being replaced,
+					// the instance is gone only when its PTR record is
+					data = services.get(service);
+				}
+				if (data != null) {
+					result.put(service, data);
+				}
+			}
+			compare(result);
+		}
+		deliver();
+	}
+
+	/**
+	 * Compare new results with the current view, queue events for the differences
+	 * and make the results the current view.
+	 * @param result the new results.
+	 */
+	private void compare(Map<ServiceName, ServiceData> result) {
+		Map<ServiceName, ServiceData> current = new LinkedHashMap<ServiceName, ServiceData>();
+		for (ServiceData data : result.values()) {
+			ServiceData old = services.remove(data.getName());
+			if (old == null) {
+				fire(Event.ADDED, data);
+			} else if (!isSame(old, data)) {
+				fire(Event.CHANGED, data);
+			}
+			current.put(data.getName(), new ServiceData(data));
+		}
+		for (ServiceData old : services.values()) {
+			fire(Event.REMOVED, old);
+		}
+		services = current;
+	}
+
+	private void fire(int kind, ServiceData data) {
+		for (ServiceListener listener : listeners) {
+			events.add(new Event(listener, kind, data));
+		}
+	}
+
+	/**
+	 * Deliver the queued events on the executor of the browser, unless that is already
+	 * being done. Events are never delivered on the thread that found the change, which
+	 * may be the reader thread of a DNS Push session or LLQ client.
+	 */
+	private void deliver() {
+		synchronized (this) {
+			if (delivering || events.isEmpty()) {
+				return;
+			}
+			delivering = true;
+		}
+		browser.getExecutor().execute(this::deliverQueued);
+	}
+
+	private void deliverQueued() {
+		while (true) {
+			Event event;
+			synchronized (this) {
+				event = events.poll();
+				while (event != null && !listeners.contains(event.listener)) {
+					event = events.poll();      // Removed after the event was queued
+				}
+				if (event == null) {
+					delivering = false;
+					return;
+				}
+			}
+			try {
+				event.deliver();
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Service listener failed", e);
+			}
+		}
+	}
+
+	private static boolean isSame(ServiceData a, ServiceData b) {
+		return a.getPort() == b.getPort()
+				&& (a.getHost() == null ? b.getHost() == null : a.getHost().equals(b.getHost()))
+				&& a.getProperties().equals(b.getProperties());
+	}
+
+	/**
+	 * Called when the server refuses or fails a subscription to the records of an
+	 * instance. The instance can't be followed with change notifications, so the
+	 * watcher switches to polling.
+	 */
+	private synchronized void instanceSubscriptionFailed(Name name, Throwable ex) {
+		if (!pushing || stopped) {
+			return;
+		}
+		logger.log(Level.INFO, "Change notifications for {0} failed, polling {1} instead: {2}",
+				new Object[] { name, type, DnsSDFutures.unwrap(ex) });
+		stopPush();
+		schedule(0);
+	}
+
+	/**
+	 * The SRV and TXT subscriptions of a service instance.
+	 * If no TXT record has been pushed for the instance shortly after subscribing,
+	 * it is resolved by a query instead, since there is no telling if the TXT
+	 * record is missing or just hasn't been pushed yet.
+	 */
+	private class InstanceSubscriptions {
+
+		private final CompletableFuture<Subscription> srv;
+		private final CompletableFuture<Subscription> txt;
+		private CompletableFuture<ServiceData> resolved;
+
+		InstanceSubscriptions(RecordNotifier notifier, Name name) {
+			this.srv = notifier.subscribe(name, Type.SRV, ServiceWatcher.this::pushed);
+			this.txt = notifier.subscribe(name, Type.TXT, ServiceWatcher.this::pushed);
+			// Not on this thread, the caller holds the lock and is going through the subscriptions
+			for (CompletableFuture<Subscription> subscription : Arrays.asList(srv, txt)) {
+				subscription.whenCompleteAsync((result, ex) -> {
+					if (ex != null) {
+						instanceSubscriptionFailed(name, ex);
+					} else {
+						pushed();
+					}
+				}, browser.getExecutor());
+			}
+		}
+
+		/**
+		 * Get the service data from the current records. Must hold the lock of the watcher.
+		 * @return the service data, or null if the SRV record isn't known yet.
+		 */
+		ServiceData getServiceData(ServiceName service) {
+			Record[] srvRecords = getRecords(srv);
+			Record[] txtRecords = getRecords(txt);
+			if (srvRecords.length == 0) {
+				return null;
+			}
+			if (txtRecords.length > 0 || !txt.isDone()) {
+				resolved = null;
+				return txtRecords.length > 0 ? UnicastDnsSDBrowser.parseServiceData(service, srvRecords, txtRecords) : null;
+			}
+			if (resolved == null) {
+				// Give the server a moment to push the TXT record before asking for it
+				CompletableFuture<ServiceData> future = new CompletableFuture<ServiceData>();
+				DnsSDExecutors.scheduler().schedule(() -> {
+					if (!future.isDone()) {
+						browser.getServiceDataAsync(service).whenComplete((result, ex) -> {
+							if (ex != null) {
+								future.completeExceptionally(ex);
+							} else {
+								future.complete(result);
+							}
+						});
+					}
+				}, TXT_WAIT, TimeUnit.MILLISECONDS);
+				future.whenCompleteAsync((result, ex) -> pushed(), browser.getExecutor());
+				resolved = future;
+			}
+			if (!resolved.isDone()) {
+				return null;
+			}
+			// Pushed SRV record, queried TXT record if there is one
+			ServiceData data = UnicastDnsSDBrowser.parseServiceData(service, srvRecords, txtRecords);
+			ServiceData queried = resolved.isCompletedExceptionally() ? null : resolved.join();
+			if (queried != null) {
+				data.getProperties().putAll(queried.getProperties());
+			}
+			return data;
+		}
+
+		void cancel() {
+			srv.thenAccept(Subscription::cancel);
+			txt.thenAccept(Subscription::cancel);
+			if (resolved != null) {
+				resolved.cancel(true);
+			}
+		}
+
+		private Record[] getRecords(CompletableFuture<Subscription> subscription) {
+			if (!subscription.isDone() || subscription.isCompletedExceptionally()) {
+				return new Record[0];
+			}
+			return subscription.join().getRecords();
+		}
+	}
+
+	/**
+	 * A queued event for a listener.
+	 */
+	private static class Event {
+
+		static final int ADDED = 0;
+		static final int REMOVED = 1;
+		static final int CHANGED = 2;
+
+		final ServiceListener listener;
+		final int kind;
+		final ServiceData data;
+
+		Event(ServiceListener listener, int kind, ServiceData data) {
+			this.listener = listener;
+			this.kind = kind;
+			this.data = data;
+		}
+
+		void deliver() {
+			switch (kind) {
+			case ADDED:
+				listener.serviceAdded(data);
+				break;
+			case REMOVED:
+				listener.serviceRemoved(data);
+				break;
+			default:
+				listener.serviceChanged(data);
+				break;
+			}
+		}
+	}
+
+}
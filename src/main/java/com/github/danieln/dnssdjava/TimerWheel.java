@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Internal hashed timer wheel for large numbers of long timeouts, like update lease renewals.
+ * <p>
+ * Timeouts are kept in a ring of slots, one per tick, so scheduling and cancelling
+ * take constant time no matter how many timeouts there are. Timeouts further away
+ * than one turn of the wheel stay in their slot for more turns. The timeouts that
+ * expire in the same tick are handed to their handlers in one batch per handler,
+ * which lets a handler do the work for all of them at once.
+ * @author Daniel Nilsson
+ */
+class TimerWheel {
+
+	private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+
+	/**
+	 * The length of a tick, in milliseconds.
+	 */
+	private static final long TICK = 1000;
+
+	/**
+	 * The number of slots in the wheel.
+	 */
+	private static final int SLOTS = 1024;
+
+	private static TimerWheel instance;
+
+	private final List<List<Timeout>> slots = new ArrayList<List<Timeout>>(SLOTS);
+	private long tick;
+	private int size;
+	private ScheduledFuture<?> ticker;
+
+	private TimerWheel() {
+		for (int i = 0; i < SLOTS; i++) {
+			slots.add(new ArrayList<Timeout>());
+		}
+	}
+
+	/**
+	 * Get the shared timer wheel.
+	 * @return the timer wheel.
+	 */
+	static synchronized TimerWheel getInstance() {
+		if (instance == null) {
+			instance = new TimerWheel();
+		}
+		return instance;
+	}
+
+	/**
+	 * Handler for expired timeouts.
+	 * @param <T> the type of the items the timeouts are for.
+	 */
+	interface Handler<T> {
+
+		/**
+		 * Called from the timer thread with the items whose timeouts expired in the same tick.
+		 * Must return quickly, work that takes time should be done on another thread.
+		 * @param items the items, in the order they were scheduled.
+		 */
+		void expired(List<T> items);
+	}
+
+	/**
+	 * Schedule a timeout. The delay is rounded up to whole ticks.
+	 * @param handler the handler to give the item to when the timeout expires.
+	 * @param item the item.
+	 * @param delay the delay.
+	 * @param unit the unit of the delay.
+	 * @return the timeout, which can be cancelled.
+	 */
+	synchronized <T> Timeout schedule(Handler<T> handler, T item, long delay, TimeUnit unit) {
+		long ticks = Math.max(1, (unit.toMillis(delay) + TICK - 1) / TICK);
+		Timeout timeout = new Timeout(handler, item, tick + ticks);
+		slots.get((int) (timeout.deadline % SLOTS)).add(timeout);
+		size++;
+		if (ticker == null) {
+			ticker = DnsSDExecutors.scheduler().scheduleAtFixedRate(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+		}
+		return timeout;
+	}
+
+	/**
+	 * Get the number of timeouts scheduled, including cancelled ones not yet cleared out.
+	 * @return the number of timeouts.
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	private void tick() {
+		Map<Handler<?>, List<Object>> expired = new LinkedHashMap<Handler<?>, List<Object>>();
+		synchronized (this) {
+			tick++;
+			for (Iterator<Timeout> it = slots.get((int) (tick % SLOTS)).iterator(); it.hasNext(); ) {
+				Timeout timeout = it.next();
+				if (timeout.cancelled || timeout.deadline <= tick) {
+					it.remove();
+					size--;
+					if (!timeout.cancelled) {
+						timeout.cancelled = true;
+						List<Object> items = expired.get(timeout.handler);
+						if (items == null) {
+							items = new ArrayList<Object>();
+							expired.put(timeout.handler, items);
+						}
+						items.add(timeout.item);
+					}
+				}
+			}
+			if (size == 0) {
+				// Stop ticking while there is nothing to do
+				ticker.cancel(false);
+				ticker = null;
+			}
+		}
+		for (Map.Entry<Handler<?>, List<Object>> entry : expired.entrySet()) {
+			try {
+				expired(entry.getKey(), entry.getValue());
+			} catch (RuntimeException ex) {
+				logger.log(Level.WARNING, "Timeout handler failed", ex);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> void expired(Handler<T> handler, List<Object> items) {
+		handler.expired((List<T>) items);       // Safe, the items were scheduled with the handler
+	}
+
+	/**
+	 * A scheduled timeout.
+	 */
+	class Timeout {
+
+		private final Handler<?> handler;
+		private final Object item;
+		private final long deadline;
+		private boolean cancelled;
+
+		Timeout(Handler<?> handler, Object item, long deadline) {
+			this.handler = handler;
+			this.item = item;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel the timeout. The item is not given to the handler
+		 * unless that has already happened.
+		 * @return true if the timeout was cancelled, false if it had already expired.
+		 */
+		boolean cancel() {
+			synchronized (TimerWheel.this) {
+				if (cancelled) {
+					return false;
+				}
+				cancelled = true;
+				return true;
+			}
+		}
+	}
+
+}
@@ -5,25 +5,59 @@
  */
 package com.github.danieln.dnssdjava;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
 import org.xbill.DNS.NameTooLongException;
 import org.xbill.DNS.PTRRecord;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Section;
 import org.xbill.DNS.TXTRecord;
 import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
 
 /**
  * Unicast {@link DnsSDBrowser} implementation backed by dnsjava.
+ * <p>
+ * Browse and resolve results are kept in a cache owned by the browser until the
+ * time to live of the DNS records runs out. The cache holds at most "dnssd.cache.size"
+ * records (system property), the least recently used results are evicted first.
+ * Answers saying that a service or service type doesn't exist are cached as well,
+ * for the time given by the SOA record of the zone (RFC 2308).
+ * <p>
+ * If the "dnssd.cache.stale" system property is set to a number of seconds, expired
+ * results are kept for that long after they expire. A stale result is returned
+ * immediately while a fresh one is fetched in the background, and it keeps being
+ * returned if the DNS server can't be reached.
+ * <p>
+ * Watchers use DNS Push Notifications (RFC 8765) if the browsing domain has a
+ * DNS Push server, or else DNS Long-Lived Queries (RFC 8764) if it has an LLQ server,
+ * and fall back to querying when the records expire if it has neither.
+ * The "dnssd.push" and "dnssd.llq" system properties can be set to false to not
+ * use them, and "dnssd.push.tls" to false to connect to the DNS Push server without TLS.
  * @author Daniel Nilsson
  */
 class UnicastDnsSDBrowser implements DnsSDBrowser {
@@ -31,47 +65,682 @@ class UnicastDnsSDBrowser implements DnsSDBrowser {
 	private static final Logger logger = Logger.getLogger(UnicastDnsSDBrowser.class.getName());
 
 	private static final Name SERVICES_DNSSD_UDP = Name.fromConstantString("_services._dns-sd._udp");
+	private static final Name DNS_PUSH_TLS_TCP = Name.fromConstantString("_dns-push-tls._tcp");
+	private static final Name DNS_LLQ_UDP = Name.fromConstantString("_dns-llq._udp");
+
+	/**
+	 * The default maximum number of queries a bulk operation has in flight at the same time.
+	 */
+	private static final int DEFAULT_MAX_QUERIES = 64;
+
+	/**
+	 * The default maximum number of DNS records in the cache.
+	 */
+	private static final int DEFAULT_CACHE_SIZE = 10000;
+
+	/**
+	 * How long to wait before looking for a notification server again after a failure, in seconds.
+	 */
+	private static final long NOTIFIER_RETRY_INTERVAL = 300;
+
+	/**
+	 * How long to query for TXT records separately after a server left them out
+	 * of an SRV response, in seconds.
+	 */
+	private static final long ADDITIONAL_TXT_RETRY_INTERVAL = 600;
 
 	private final List<Name> browserDomains;
+	private final ExecutorService executor;
+	private final DnsClient dnsClient;
+	private final int maxQueries;
+	private final boolean push;
+	private final boolean pushTls;
+	private final boolean llq;
+
+	/**
+	 * Cache value for a service that doesn't exist.
+	 */
+	private static final Object NO_SERVICE = new Object();
+
+	/**
+	 * Cached results. PTR query names map to lists of service types or
+	 * service names, service names map to service data or {@link #NO_SERVICE}.
+	 */
+	private final ExpiringCache<Object, Object> cache;
+
+	/**
+	 * Background refreshes of stale cache entries in progress, by cache key.
+	 */
+	private final ConcurrentMap<Object, CompletableFuture<?>> refreshes = new ConcurrentHashMap<Object, CompletableFuture<?>>();
+
+	/**
+	 * Active watchers, by service type.
+	 */
+	private final ConcurrentMap<ServiceType, ServiceWatcher> watchers = new ConcurrentHashMap<ServiceType, ServiceWatcher>();
+
+	/**
+	 * DNS Push sessions or LLQ clients, by browsing domain. Failed attempts are kept for a while.
+	 */
+	private final Map<Name, CompletableFuture<RecordNotifier>> notifiers = new HashMap<Name, CompletableFuture<RecordNotifier>>();
+
+	/**
+	 * Domains whose server is believed not to include the TXT record in the additional
+	 * section of SRV responses, and when to try relying on it again (System.nanoTime()).
+	 */
+	private final ConcurrentMap<Name, Long> noAdditionalTxt = new ConcurrentHashMap<Name, Long>();
+
+	/**
+	 * All browsers, so that registrators can flush the names they change from their caches.
+	 */
+	private static final Set<UnicastDnsSDBrowser> browsers = Collections.newSetFromMap(new WeakHashMap<UnicastDnsSDBrowser, Boolean>());
 
 	/**
 	 * Create a new UnicastDnsSDBrowser.
 	 * @param browserDomains list of domain names to browse.
+	 * @param executor the executor used to run the queries for the different domains concurrently.
 	 */
-	UnicastDnsSDBrowser(List<Name> browserDomains) {
+	UnicastDnsSDBrowser(List<Name> browserDomains, ExecutorService executor) {
 		this.browserDomains = browserDomains;
+		this.executor = executor;
+		this.dnsClient = new DnsClient(executor);
+		this.push = Boolean.parseBoolean(System.getProperty("dnssd.push", "true"));
+		this.pushTls = Boolean.parseBoolean(System.getProperty("dnssd.push.tls", "true"));
+		this.llq = Boolean.parseBoolean(System.getProperty("dnssd.llq", "true"));
+		this.maxQueries = Integer.getInteger("dnssd.maxqueries", DEFAULT_MAX_QUERIES);
+		this.cache = new ExpiringCache<Object, Object>(Integer.getInteger("dnssd.cache.size", DEFAULT_CACHE_SIZE),
+				Long.getLong("dnssd.cache.stale", 0));
+		synchronized (browsers) {
+			browsers.add(this);
+		}
 		logger.log(Level.INFO, "Created DNS-SD Browser for domains: {0}", browserDomains);
 	}
 
+	/**
+	 * Remove the cached results for names from the caches of all browsers.
+	 * Used after a registrator has changed the records of the names.
+	 * @param names the changed DNS names, PTR query names or service names.
+	 */
+	static void flushCaches(Collection<Name> names) {
+		List<UnicastDnsSDBrowser> all;
+		synchronized (browsers) {
+			all = new ArrayList<UnicastDnsSDBrowser>(browsers);
+		}
+		for (UnicastDnsSDBrowser browser : all) {
+			for (Name name : names) {
+				browser.cache.remove(name);
+				try {
+					browser.cache.remove(ServiceName.fromDnsName(name));
+				} catch (IllegalArgumentException ex) {
+					// Not a service name
+				}
+			}
+		}
+	}
+
 	@Override
 	public Collection<ServiceType> getServiceTypes() {
-		Set<ServiceType> results = new HashSet<ServiceType>();
+		Collection<ServiceType> results = DnsSDFutures.await(getServiceTypesAsync());
+		return (results != null) ? results : Collections.<ServiceType>emptyList();
+	}
+
+	@Override
+	public CompletableFuture<Collection<ServiceType>> getServiceTypesAsync() {
+		List<CompletableFuture<List<ServiceType>>> futures = new ArrayList<CompletableFuture<List<ServiceType>>>(browserDomains.size());
 		for (Name domain : browserDomains) {
-			results.addAll(getServiceTypes(domain));
+			futures.add(getServiceTypes(domain));
 		}
-		return results;
+		return DnsSDFutures.union(futures);
 	}
 
 	@Override
 	public Collection<ServiceName> getServiceInstances(ServiceType type) {
-		List<ServiceName> results = new ArrayList<ServiceName>();
-		for (Name domain : browserDomains) {
-			results.addAll(getServiceInstances(type, domain));
+		Collection<ServiceName> results = DnsSDFutures.await(getServiceInstancesAsync(type));
+		return (results != null) ? results : Collections.<ServiceName>emptyList();
+	}
+
+	@Override
+	public CompletableFuture<Collection<ServiceName>> getServiceInstancesAsync(ServiceType type) {
+		// Query every domain and, if there are subtypes, every subtype at the same time
+		List<Name> typeDomainNames = getTypeDomainNames(type);
+		List<CompletableFuture<List<ServiceName>>> futures = new ArrayList<CompletableFuture<List<ServiceName>>>(typeDomainNames.size());
+		for (Name typeDomainName : typeDomainNames) {
+			futures.add(getServiceInstances(typeDomainName, false).thenApply(instances -> new ArrayList<ServiceName>(instances.keySet())));
 		}
-		return results;
+		return DnsSDFutures.union(futures);
 	}
 
 	@Override
 	public ServiceData getServiceData(ServiceName service) {
+		return DnsSDFutures.await(getServiceDataAsync(service));
+	}
+
+	@Override
+	public CompletableFuture<ServiceData> getServiceDataAsync(ServiceName service) {
+		return orElse(lookup(service), null, service);
+	}
+
+	/**
+	 * Get the service details for a service, from the cache if possible.
+	 * @param service the name of the service.
+	 * @return a future for the service data, or null if the service doesn't exist;
+	 *         fails with an IOException if the DNS server can't be reached.
+	 */
+	private CompletableFuture<ServiceData> lookup(ServiceName service) {
+		Object cached = cache.get(service);
+		if (cached == null) {
+			cached = cache.getStale(service);
+			if (cached != null) {
+				refresh(service, () -> resolve(service));
+			}
+		}
+		if (cached == NO_SERVICE) {
+			return CompletableFuture.completedFuture(null);
+		} else if (cached != null) {
+			return CompletableFuture.completedFuture(new ServiceData((ServiceData) cached));
+		}
+		return resolve(service);
+	}
+
+	/**
+	 * Query for the SRV and TXT records of a service, bypassing the cache.
+	 * @param service the name of the service.
+	 * @return a future for the service data, or null if the service doesn't exist.
+	 */
+	private CompletableFuture<ServiceData> resolve(ServiceName service) {
 		Name serviceName = service.toDnsName();
-		Lookup lookup = new Lookup(serviceName, Type.SRV);
-		Record[] records = lookup.run();
-		if (records == null || records.length == 0) {
+		List<CompletableFuture<Message>> queries = new ArrayList<CompletableFuture<Message>>(2);
+		CompletableFuture<Message> srv = dnsClient.query(serviceName, Type.SRV);
+		queries.add(srv);
+		CompletableFuture<ServiceData> result;
+		Name domain = new Name(serviceName, 3);
+		Long retryAt = noAdditionalTxt.get(domain);
+		if (retryAt != null && retryAt - System.nanoTime() > 0) {
+			// The server doesn't include the TXT record with the SRV record, ask for both at once
+			CompletableFuture<Message> txt = dnsClient.query(serviceName, Type.TXT);
+			queries.add(txt);
+			result = srv.thenCombine(txt, (srvResponse, txtResponse) -> {
+				Record[] srvRecords = DnsClient.getRecords(srvResponse, Section.ANSWER, serviceName, Type.SRV);
+				if (srvRecords.length == 0) {
+					return notFound(service, srvResponse);
+				}
+				if (DnsClient.getRecords(srvResponse, Section.ADDITIONAL, serviceName, Type.TXT).length > 0) {
+					noAdditionalTxt.remove(domain, retryAt);
+				}
+				return toServiceData(service, srvRecords, DnsClient.getRecords(txtResponse, Section.ANSWER, serviceName, Type.TXT));
+			});
+		} else {
+			result = srv.thenCompose(response -> {
+				Record[] srvRecords = DnsClient.getRecords(response, Section.ANSWER, serviceName, Type.SRV);
+				if (srvRecords.length == 0) {
+					return CompletableFuture.completedFuture(notFound(service, response));
+				}
+				Record[] txtRecords = DnsClient.getRecords(response, Section.ADDITIONAL, serviceName, Type.TXT);
+				if (txtRecords.length > 0) {
+					return CompletableFuture.completedFuture(toServiceData(service, srvRecords, txtRecords));
+				}
+				logger.log(Level.FINE, "No TXT record in additional section for {0}, will query for it separately in {1} for a while",
+						new Object[] { service, domain });
+				noAdditionalTxt.put(domain, System.nanoTime() + TimeUnit.SECONDS.toNanos(ADDITIONAL_TXT_RETRY_INTERVAL));
+				return dnsClient.query(serviceName, Type.TXT).thenApply(txtResponse -> toServiceData(service, srvRecords,
+						DnsClient.getRecords(txtResponse, Section.ANSWER, serviceName, Type.TXT)));
+			});
+		}
+		DnsSDFutures.cancelOnCancel(result, queries);
+		return result;
+	}
+
+	@Override
+	public Map<ServiceName, ServiceData> getServiceData(Collection<ServiceName> services) {
+		Map<ServiceName, ServiceData> results = DnsSDFutures.await(getServiceDataAsync(services));
+		return (results != null) ? results : Collections.<ServiceName, ServiceData>emptyMap();
+	}
+
+	@Override
+	public CompletableFuture<Map<ServiceName, ServiceData>> getServiceDataAsync(Collection<ServiceName> services) {
+		// Each service needs two queries
+		return DnsSDFutures.mapBounded(services, Math.max(1, maxQueries / 2), this::getServiceDataAsync);
+	}
+
+	@Override
+	public Map<ServiceName, ServiceData> browseAndResolve(ServiceType type) {
+		Map<ServiceName, ServiceData> results = DnsSDFutures.await(browseAndResolveAsync(type));
+		return (results != null) ? results : Collections.<ServiceName, ServiceData>emptyMap();
+	}
+
+	@Override
+	public CompletableFuture<Map<ServiceName, ServiceData>> browseAndResolveAsync(ServiceType type) {
+		return browseAndResolveAsync(type, false);
+	}
+
+	/**
+	 * Browse for and resolve all service instances of a type.
+	 * @param type the service type.
+	 * @param strict true if the future should fail if the DNS server can't be reached,
+	 *        false to leave out the domains and services that couldn't be queried.
+	 * @return a future for the map from service name to service data.
+	 */
+	CompletableFuture<Map<ServiceName, ServiceData>> browseAndResolveAsync(ServiceType type, boolean strict) {
+		List<Name> typeDomainNames = getTypeDomainNames(type);
+		List<CompletableFuture<Map<ServiceName, ServiceData>>> futures = new ArrayList<CompletableFuture<Map<ServiceName, ServiceData>>>(typeDomainNames.size());
+		for (Name typeDomainName : typeDomainNames) {
+			// Start resolving the instances in each domain as soon as its PTR response arrives
+			CompletableFuture<Map<ServiceName, ServiceData>> instances = getServiceInstances(typeDomainName, strict);
+			CompletableFuture<Map<ServiceName, ServiceData>> resolved = instances.thenCompose(map -> resolveInstances(map, strict));
+			DnsSDFutures.cancelOnCancel(resolved, Collections.singletonList(instances));
+			futures.add(resolved);
+		}
+		CompletableFuture<Map<ServiceName, ServiceData>> result = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.thenApply(v -> {
+					Map<ServiceName, ServiceData> map = new LinkedHashMap<ServiceName, ServiceData>();
+					for (CompletableFuture<Map<ServiceName, ServiceData>> future : futures) {
+						for (Map.Entry<ServiceName, ServiceData> entry : future.join().entrySet()) {
+							if (!map.containsKey(entry.getKey())) {
+								map.put(entry.getKey(), entry.getValue());
+							}
+						}
+					}
+					return map;
+				});
+		DnsSDFutures.cancelOnCancel(result, futures);
+		return result;
+	}
+
+	@Override
+	public CacheStatistics getCacheStatistics() {
+		return cache.getStatistics();
+	}
+
+	@Override
+	public void clearCache() {
+		cache.clear();
+	}
+
+	@Override
+	public void watch(ServiceType type, ServiceListener listener) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		while (true) {
+			ServiceWatcher watcher = watchers.computeIfAbsent(type, t -> new ServiceWatcher(this, t));
+			if (watcher.addListener(listener)) {
+				return;
+			}
+			// The watcher was stopped by a concurrent unwatch
+			watchers.remove(type, watcher);
+		}
+	}
+
+	@Override
+	public void unwatch(ServiceType type, ServiceListener listener) {
+		ServiceWatcher watcher = watchers.get(type);
+		if (watcher != null && watcher.removeListener(listener)) {
+			watchers.remove(type, watcher);
+		}
+	}
+
+	/**
+	 * Get the time until the first of the cached results for a type expires.
+	 * @param type the service type.
+	 * @param services the services of the type.
+	 * @return the time in milliseconds, or -1 if none of the results are cached.
+	 */
+	long getTimeToLive(ServiceType type, Collection<ServiceName> services) {
+		long ttl = -1;
+		for (Name name : getTypeDomainNames(type)) {
+			ttl = minTimeToLive(ttl, cache.getTimeToLive(name));
+		}
+		for (ServiceName service : services) {
+			ttl = minTimeToLive(ttl, cache.getTimeToLive(service));
+		}
+		return (ttl < 0) ? -1 : TimeUnit.NANOSECONDS.toMillis(ttl);
+	}
+
+	private static long minTimeToLive(long a, long b) {
+		if (a < 0) {
+			return b;
+		} else if (b < 0) {
+			return a;
+		}
+		return Math.min(a, b);
+	}
+
+	/**
+	 * Resolve service instances that haven't been resolved already.
+	 * @param instances map from service name to service data, or null if not yet known.
+	 * @param strict true if the future should fail if the DNS server can't be reached.
+	 * @return a future for the map from service name to service data.
+	 */
+	private CompletableFuture<Map<ServiceName, ServiceData>> resolveInstances(Map<ServiceName, ServiceData> instances, boolean strict) {
+		return DnsSDFutures.mapBounded(instances.keySet(), Math.max(1, maxQueries / 2), service -> {
+			ServiceData data = instances.get(service);
+			if (data != null) {
+				return CompletableFuture.completedFuture(data);
+			}
+			return strict ? lookup(service) : getServiceDataAsync(service);
+		});
+	}
+
+	/**
+	 * Get the service types from a single domain.
+	 * @param domainName the domain to browse.
+	 * @return a future for the list of service types.
+	 */
+	private CompletableFuture<List<ServiceType>> getServiceTypes(Name domainName) {
+		Name name;
+		try {
+			name = Name.concatenate(SERVICES_DNSSD_UDP, domainName);
+		} catch (NameTooLongException ex) {
+			throw new IllegalArgumentException("Too long name: " + domainName, ex);
+		}
+		return orElse(browse(name, "service type", target -> new ServiceType(target.getLabelString(0), target.getLabelString(1))),
+				new Browsed<ServiceType>(Collections.<ServiceType>emptyList(), null), name)
+				.thenApply(response -> response.results);
+	}
+
+	/**
+	 * Get all service names of a specific type in a single domain.
+	 * Instances whose SRV and TXT records the server included in the additional
+	 * section of the PTR response are resolved as well, and put in the cache.
+	 * @param typeDomainName the name of the type in the domain, including subtype (if any).
+	 * @param strict true if the future should fail if the DNS server can't be reached.
+	 * @return a future for a map from service name to service data, or null if the service wasn't resolved.
+	 */
+	private CompletableFuture<Map<ServiceName, ServiceData>> getServiceInstances(Name typeDomainName, boolean strict) {
+		CompletableFuture<Browsed<ServiceName>> browsed = browse(typeDomainName, "service instance", ServiceName::fromDnsName);
+		if (!strict) {
+			browsed = orElse(browsed, new Browsed<ServiceName>(Collections.<ServiceName>emptyList(), null), typeDomainName);
+		}
+		return browsed.thenApply(response -> {
+			Map<ServiceName, ServiceData> results = new LinkedHashMap<ServiceName, ServiceData>();
+			for (ServiceName service : response.results) {
+				ServiceData data = null;
+				if (response.message != null) {
+					Name name = service.toDnsName();
+					Record[] srvRecords = DnsClient.getRecords(response.message, Section.ADDITIONAL, name, Type.SRV);
+					Record[] txtRecords = DnsClient.getRecords(response.message, Section.ADDITIONAL, name, Type.TXT);
+					if (srvRecords.length > 0 && txtRecords.length > 0) {
+						logger.log(Level.FINEST, "Resolved {0} from additional records", service);
+						data = toServiceData(service, srvRecords, txtRecords);
+					}
+				}
+				results.put(service, data);
+			}
+			return results;
+		});
+	}
+
+	/**
+	 * Get the targets of the PTR records of a name, from the cache if possible.
+	 * @param name the name to query.
+	 * @param what description of the targets, for logging.
+	 * @param parser function that converts a target name, may throw IllegalArgumentException.
+	 * @return a future for the converted targets, along with the response if there was a query;
+	 *         fails with an IOException if the DNS server can't be reached.
+	 */
+	private <T> CompletableFuture<Browsed<T>> browse(Name name, String what, Function<Name, T> parser) {
+		@SuppressWarnings("unchecked")
+		List<T> cached = (List<T>) cache.get(name);
+		if (cached == null) {
+			@SuppressWarnings("unchecked")
+			List<T> stale = (List<T>) cache.getStale(name);
+			if (stale != null) {
+				refresh(name, () -> queryPTR(name, what, parser));
+			}
+			cached = stale;
+		}
+		if (cached != null) {
+			return CompletableFuture.completedFuture(new Browsed<T>(cached, null));
+		}
+		return queryPTR(name, what, parser);
+	}
+
+	/**
+	 * Query for the PTR records of a name, bypassing the cache.
+	 * @param name the name to query.
+	 * @param what description of the targets, for logging.
+	 * @param parser function that converts a target name, may throw IllegalArgumentException.
+	 * @return a future for the converted targets, along with the response.
+	 */
+	private <T> CompletableFuture<Browsed<T>> queryPTR(Name name, String what, Function<Name, T> parser) {
+		CompletableFuture<Message> query = dnsClient.query(name, Type.PTR);
+		CompletableFuture<Browsed<T>> result = query.thenApply(response -> {
+			Record[] records = DnsClient.getRecords(response, Section.ANSWER, name, Type.PTR);
+			List<T> results = new ArrayList<T>(records.length);
+			for (Record record : records) {
+				Name target = ((PTRRecord) record).getTarget();
+				try {
+					results.add(parser.apply(target));
+				} catch (IllegalArgumentException e) {
+					logger.warning("Invalid " + what + " " + target + ": " + e.getMessage());
+				}
+			}
+			results = Collections.unmodifiableList(results);
+			if (records.length > 0) {
+				cache.put(name, results, getTimeToLive(records), records.length);
+			} else if (DnsClient.isNegative(response, name, Type.PTR)) {
+				cache.put(name, results, dnsClient.getNegativeTimeToLive(response), 1);
+			}
+			return new Browsed<T>(results, response);
+		});
+		DnsSDFutures.cancelOnCancel(result, Collections.singletonList(query));
+		return result;
+	}
+
+	/**
+	 * Make a future that completes with a default value instead of failing if the
+	 * DNS server can't be reached, the same way a failed {@link org.xbill.DNS.Lookup}
+	 * gives no records.
+	 * @param future the future.
+	 * @param other the value to use if the DNS server can't be reached.
+	 * @param what what was queried, for logging.
+	 * @return the new future.
+	 */
+	private static <T> CompletableFuture<T> orElse(CompletableFuture<T> future, T other, Object what) {
+		CompletableFuture<T> result = future.exceptionally(ex -> {
+			if (DnsSDFutures.unwrap(ex) instanceof IOException) {
+				logger.log(Level.FINE, "Failed to query {0}: {1}", new Object[] { what, ex });
+				return other;
+			}
+			throw DnsSDFutures.unchecked(ex);
+		});
+		DnsSDFutures.cancelOnCancel(result, Collections.singletonList(future));
+		return result;
+	}
+
+	/**
+	 * Refresh a stale cache entry in the background, unless it is already being refreshed.
+	 * The query updates the cache when it succeeds, if it fails the stale entry is kept.
+	 * @param key the cache key.
+	 * @param query supplier of the query that refreshes the entry.
+	 */
+	private void refresh(Object key, Supplier<CompletableFuture<?>> query) {
+		CompletableFuture<Void> marker = new CompletableFuture<Void>();
+		if (refreshes.putIfAbsent(key, marker) != null) {
+			return;
+		}
+		logger.log(Level.FINE, "Refreshing stale cache entry {0}", key);
+		query.get().whenComplete((result, ex) -> {
+			refreshes.remove(key, marker);
+			marker.complete(null);
+		});
+	}
+
+	/**
+	 * Get the names to query when browsing for a type, in all browsing domains.
+	 * @param type the service type.
+	 * @return a list with the base type name for each domain if there are no subtypes,
+	 *         else a name for each subtype in each domain.
+	 */
+	private List<Name> getTypeDomainNames(ServiceType type) {
+		List<Name> results = new ArrayList<Name>();
+		for (Name domain : browserDomains) {
+			results.addAll(getTypeDomainNames(type, domain));
+		}
+		return results;
+	}
+
+	/**
+	 * Get the names to query when browsing for a type in a single domain.
+	 * @param type the service type.
+	 * @param domain the browsing domain.
+	 * @return a list with the base type name if there are no subtypes,
+	 *         else a name for each subtype.
+	 */
+	List<Name> getTypeDomainNames(ServiceType type, Name domain) {
+		List<String> typeStrings;
+		if (type.getSubtypes().isEmpty()) {
+			typeStrings = Collections.singletonList(type.toDnsString());
+		} else {
+			typeStrings = type.toDnsStringsWithSubtype();
+		}
+		List<Name> results = new ArrayList<Name>(typeStrings.size());
+		for (String typeString : typeStrings) {
+			try {
+				results.add(Name.fromString(typeString, domain));
+			} catch (TextParseException ex) {
+				throw new IllegalArgumentException("Invalid type: " + typeString, ex);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Get the browsing domains.
+	 * @return the list of domain names.
+	 */
+	List<Name> getBrowserDomains() {
+		return browserDomains;
+	}
+
+	/**
+	 * Get the executor that runs the queries and handles their responses.
+	 * @return the executor.
+	 */
+	ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Get the change notifier for a browsing domain, connecting to the server if needed.
+	 * A DNS Push server is looked for with the "_dns-push-tls._tcp" SRV record of the
+	 * domain, and if there is none an LLQ server with the "_dns-llq._udp" SRV record.
+	 * Failures are remembered for a while, so that domains without either
+	 * aren't queried over and over again.
+	 * @param domain the browsing domain.
+	 * @return a future for the notifier, fails with an IOException if the domain
+	 *         has no notification server or it can't be reached.
+	 */
+	synchronized CompletableFuture<RecordNotifier> getNotifier(Name domain) {
+		CompletableFuture<RecordNotifier> notifier = notifiers.get(domain);
+		if (notifier == null) {
+			CompletableFuture<RecordNotifier> connect = connectPush(domain)
+					.exceptionally(ex -> {
+						logger.log(Level.FINE, "No DNS Push for {0}: {1}", new Object[] { domain, DnsSDFutures.unwrap(ex) });
+						return null;
+					})
+					.thenCompose(session -> session != null ? CompletableFuture.completedFuture(session) : connectLlq(domain));
+			connect.whenComplete((result, ex) -> {
+				if (ex != null) {
+					logger.log(Level.FINE, "No LLQ for {0}: {1}", new Object[] { domain, DnsSDFutures.unwrap(ex) });
+					DnsSDExecutors.scheduler().schedule(() -> removeNotifier(domain, connect), NOTIFIER_RETRY_INTERVAL, TimeUnit.SECONDS);
+				} else {
+					result.addCloseListener(() -> removeNotifier(domain, connect));
+				}
+			});
+			notifiers.put(domain, connect);
+			notifier = connect;
+		}
+		return notifier;
+	}
+
+	private synchronized void removeNotifier(Name domain, CompletableFuture<RecordNotifier> notifier) {
+		notifiers.remove(domain, notifier);
+	}
+
+	private CompletableFuture<RecordNotifier> connectPush(Name domain) {
+		if (!push) {
+			CompletableFuture<RecordNotifier> result = new CompletableFuture<RecordNotifier>();
+			result.completeExceptionally(new IOException("DNS Push disabled"));
+			return result;
+		}
+		return findServer(DNS_PUSH_TLS_TCP, domain).thenCompose(address ->
+				DnsSDFutures.<RecordNotifier>submit(executor, () -> DnsPushSession.open(address, pushTls)));
+	}
+
+	private CompletableFuture<RecordNotifier> connectLlq(Name domain) {
+		if (!llq) {
+			CompletableFuture<RecordNotifier> result = new CompletableFuture<RecordNotifier>();
+			result.completeExceptionally(new IOException("LLQ disabled"));
+			return result;
+		}
+		return findServer(DNS_LLQ_UDP, domain).thenCompose(address ->
+				DnsSDFutures.<RecordNotifier>submit(executor, () -> DnsLlqClient.open(address)));
+	}
+
+	/**
+	 * Find a server with the SRV record of a service in a domain.
+	 * @param service the service, like "_dns-llq._udp".
+	 * @param domain the domain.
+	 * @return a future for the address of the server, with the SRV target as its host name,
+	 *         fails with an IOException if there is none.
+	 */
+	private CompletableFuture<InetSocketAddress> findServer(Name service, Name domain) {
+		Name name;
+		try {
+			name = Name.concatenate(service, domain);
+		} catch (NameTooLongException ex) {
+			throw new IllegalArgumentException("Too long name: " + domain, ex);
+		}
+		return dnsClient.query(name, Type.SRV).thenCompose(response -> {
+			Record[] records = DnsClient.getRecords(response, Section.ANSWER, name, Type.SRV);
+			if (records.length == 0) {
+				throw new CompletionException(new IOException("No server for " + name));
+			}
+			SRVRecord srv = (SRVRecord) records[0];
+			return DnsSDFutures.submit(executor, () -> {
+				// Keep the host name, TLS needs it to verify the certificate of the server
+				String host = srv.getTarget().relativize(Name.root).toString();
+				InetAddress addr = InetAddress.getByAddress(host, Address.getByName(host).getAddress());
+				return new InetSocketAddress(addr, srv.getPort());
+			});
+		});
+	}
+
+	/**
+	 * Make a ServiceData object from the SRV and TXT records of a service,
+	 * and put a copy of it in the cache.
+	 * @param service the name of the service.
+	 * @param srvRecords the SRV records, may be empty if none were found.
+	 * @param txtRecords the TXT records, may be empty if none were found.
+	 * @return the service data, or null if there is no SRV record.
+	 */
+	private ServiceData toServiceData(ServiceName service, Record[] srvRecords, Record[] txtRecords) {
+		ServiceData data = parseServiceData(service, srvRecords, txtRecords);
+		if (data == null) {
+			return null;
+		}
+		long ttl = getTimeToLive(srvRecords);
+		if (txtRecords.length > 0) {
+			ttl = Math.min(ttl, getTimeToLive(txtRecords));
+		}
+		cache.put(service, new ServiceData(data), ttl, 1 + data.getProperties().size());
+		return data;
+	}
+
+	/**
+	 * Make a ServiceData object from the SRV and TXT records of a service.
+	 * @param service the name of the service.
+	 * @param srvRecords the SRV records, may be empty if none were found.
+	 * @param txtRecords the TXT records, may be empty if none were found.
+	 * @return the service data, or null if there is no SRV record.
+	 */
+	static ServiceData parseServiceData(ServiceName service, Record[] srvRecords, Record[] txtRecords) {
+		if (srvRecords.length == 0) {
 			return null;
 		}
 		ServiceData data = new ServiceData();
 		data.setName(service);
-		for (Record record : records) {
+		for (Record record : srvRecords) {
 			if (record instanceof SRVRecord) {
 				// TODO Handle priority and weight correctly in case of multiple SRV record.
 				SRVRecord srv = (SRVRecord) record;
@@ -80,12 +749,7 @@ class UnicastDnsSDBrowser implements DnsSDBrowser {
 				break;
 			}
 		}
-		lookup = new Lookup(serviceName, Type.TXT);
-		records = lookup.run();
-		if (records == null || records.length == 0) {
-			return data;
-		}
-		for (Record record : records) {
+		for (Record record : txtRecords) {
 			if (record instanceof TXTRecord) {
 				// TODO Handle multiple TXT records as different variants of same service
 				TXTRecord txt = (TXTRecord) record;
@@ -114,83 +778,49 @@ class UnicastDnsSDBrowser implements DnsSDBrowser {
 	}
 
 	/**
-	 * Get the service types from a single domain.
-	 * @param domainName the domain to browse.
-	 * @return a list of service types.
+	 * Remember that a service doesn't exist, if the response says so.
+	 * @param service the name of the service.
+	 * @param response the response to the SRV query, without SRV records.
+	 * @return null.
 	 */
-	private List<ServiceType> getServiceTypes(Name domainName) {
-		try {
-			List<ServiceType> results = new ArrayList<ServiceType>();
-			Lookup lookup = new Lookup(Name.concatenate(SERVICES_DNSSD_UDP, domainName), Type.PTR);
-			Record[] records = lookup.run();
-			if (records != null) {
-				for (Record record : records) {
-					if (record instanceof PTRRecord) {
-						PTRRecord ptr = (PTRRecord) record;
-						Name name = ptr.getTarget();
-						try {
-							String type = name.getLabelString(0);
-							String transport = name.getLabelString(1);
-							results.add(new ServiceType(type, transport));
-						} catch (IllegalArgumentException e) {
-							logger.warning("Invalid service type " + name + ": " + e.getMessage());
-						}
-					}
-				}
-			}
-			return results;
-		} catch (NameTooLongException ex) {
-			throw new IllegalArgumentException("Too long name: " + domainName, ex);
+	private ServiceData notFound(ServiceName service, Message response) {
+		if (DnsClient.isNegative(response, service.toDnsName(), Type.SRV)) {
+			cache.put(service, NO_SERVICE, dnsClient.getNegativeTimeToLive(response), 1);
 		}
+		return null;
 	}
 
 	/**
-	 * Get all service names of a service type in a single domain.
-	 * If the specified type has subtypes then only instances registered under any of those are returned.
-	 * @param type the service type.
-	 * @param domainName the domain to browse.
-	 * @return a list of service names.
+	 * Get the time a set of records may be cached.
+	 * @param records the records, at least one.
+	 * @return the smallest TTL of the records, in seconds.
 	 */
-	private List<ServiceName> getServiceInstances(ServiceType type, Name domainName) {
-		if (type.getSubtypes().isEmpty()) {
-			List<ServiceName> results = new ArrayList<ServiceName>();
-			getServiceInstances(type.toDnsString(), domainName, results);
-			return results;
-		} else {
-			Set<ServiceName> results = new HashSet<ServiceName>();
-			for (String subtype : type.toDnsStringsWithSubtype()) {
-				getServiceInstances(subtype, domainName, results);
-			}
-			return new ArrayList<ServiceName>(results);
+	private static long getTimeToLive(Record[] records) {
+		long ttl = Long.MAX_VALUE;
+		for (Record record : records) {
+			ttl = Math.min(ttl, record.getTTL());
 		}
+		return ttl;
 	}
 
 	/**
-	 * Get all service names of a specific type in a single domain.
-	 * @param type the service type as a string, including transport and subtype (if any).
-	 * @param domainName the domain to browse.
-	 * @param results a collection to put found service names into.
+	 * The result of browsing a PTR name.
 	 */
-	private void getServiceInstances(String type, Name domainName, Collection<ServiceName> results) {
-		try {
-			Name typeDomainName = Name.fromString(type, domainName);
-			Lookup lookup = new Lookup(typeDomainName, Type.PTR);
-			Record[] records = lookup.run();
-			if (records != null) {
-				for (Record record : records) {
-					if (record instanceof PTRRecord) {
-						PTRRecord ptr = (PTRRecord) record;
-						Name name = ptr.getTarget();
-						try {
-							results.add(ServiceName.fromDnsName(name));
-						} catch (IllegalArgumentException e) {
-							logger.warning("Invalid service instance " + name + ": " + e.getMessage());
-						}
-					}
-				}
-			}
-		} catch (TextParseException ex) {
-			throw new IllegalArgumentException("Invalid type: " + type, ex);
+	private static class Browsed<T> {
+
+		/**
+		 * The converted PTR targets.
+		 */
+		final List<T> results;
+
+		/**
+		 * The response message, or null if the results came from the cache.
+		 */
+		final Message message;
+
+		Browsed(List<T> results, Message message) {
+			this.results = results;
+			this.message = message;
 		}
 	}
 
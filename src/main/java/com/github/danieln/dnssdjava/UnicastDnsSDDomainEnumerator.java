@@ -5,21 +5,41 @@
  */
 package com.github.danieln.dnssdjava;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
 import org.xbill.DNS.NameTooLongException;
 import org.xbill.DNS.PTRRecord;
 import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
 import org.xbill.DNS.Type;
 
 /**
  * Unicast {@link DnsSDDomainEnumerator} implementation backed by dnsjava.
+ * <p>
+ * The answers are cached for the time to live of the DNS records. Answers saying
+ * that there are no domains are cached for the time given by the SOA record of the
+ * zone (RFC 2308), so that empty computer domains aren't queried over and over again.
+ * The cache holds at most "dnssd.domaincache.size" records (system property).
+ * <p>
+ * The computer domains are tried in the order given, which should be the most likely
+ * first. The first computer domain that has any domains of the asked for kind gives the
+ * answer, the rest aren't queried.
+ * <p>
+ * {@link #enumerate()} sends the queries for all kinds of domains in all computer domains
+ * at the same time, and keeps the result until the first of the records expires.
  * @author Daniel Nilsson
  */
 class UnicastDnsSDDomainEnumerator implements DnsSDDomainEnumerator {
@@ -32,14 +52,25 @@ class UnicastDnsSDDomainEnumerator implements DnsSDDomainEnumerator {
 	private static final Name DR_DNSSD_UDP = Name.fromConstantString("dr._dns-sd._udp");
 	private static final Name LB_DNSSD_UDP = Name.fromConstantString("lb._dns-sd._udp");
 
+	/**
+	 * The default maximum number of DNS records in the cache.
+	 */
+	private static final int DEFAULT_CACHE_SIZE = 1000;
+
 	private final List<Name> computerDomains;
+	private final DnsClient dnsClient;
+	private final ExpiringCache<Name, List<String>> cache;
+	private volatile DomainEnumeration enumeration;
 
 	/**
 	 * Create a UnicastDnsSDDomainEnumerator.
 	 * @param computerDomains the list of domains to query for browsing and registering domains.
+	 * @param executor the executor used to run the queries.
 	 */
-	UnicastDnsSDDomainEnumerator(List<Name> computerDomains) {
+	UnicastDnsSDDomainEnumerator(List<Name> computerDomains, ExecutorService executor) {
 		this.computerDomains = computerDomains;
+		this.dnsClient = new DnsClient(executor);
+		this.cache = new ExpiringCache<Name, List<String>>(Integer.getInteger("dnssd.domaincache.size", DEFAULT_CACHE_SIZE));
 		logger.log(Level.INFO, "Created DNS-SD DomainEnumerator for computer domains: {0}", computerDomains);
 	}
 
@@ -68,18 +99,68 @@ class UnicastDnsSDDomainEnumerator implements DnsSDDomainEnumerator {
 		return getDomains(LB_DNSSD_UDP);
 	}
 
+	@Override
+	public DomainEnumeration enumerate() {
+		DomainEnumeration last = enumeration;
+		if (last != null && !last.isExpired()) {
+			return last;
+		}
+		Name[] rrNames = { B_DNSSD_UDP, DB_DNSSD_UDP, R_DNSSD_UDP, DR_DNSSD_UDP, LB_DNSSD_UDP };
+		Map<Name, CompletableFuture<List<String>>> lookups = new LinkedHashMap<Name, CompletableFuture<List<String>>>();
+		for (Name rrName : rrNames) {
+			for (Name domain : computerDomains) {
+				Name name = getName(rrName, domain);
+				if (!lookups.containsKey(name)) {
+					lookups.put(name, lookup(name));
+				}
+			}
+		}
+		DnsSDFutures.await(CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture<?>[lookups.size()])));
+		// Expires with the first answer it depends on, the empty ones as well.
+		// Answers that weren't cached, failed queries for instance, get the default TTL.
+		long ttl = Long.MAX_VALUE;
+		for (Name name : lookups.keySet()) {
+			long nanos = cache.getTimeToLive(name);
+			ttl = Math.min(ttl, nanos >= 0 ? TimeUnit.NANOSECONDS.toSeconds(nanos) : DomainEnumeration.DEFAULT_TTL);
+		}
+		List<List<String>> results = new ArrayList<List<String>>(rrNames.length);
+		for (Name rrName : rrNames) {
+			List<String> found = Collections.emptyList();
+			for (Name domain : computerDomains) {
+				List<String> domains = lookups.get(getName(rrName, domain)).getNow(Collections.<String>emptyList());
+				if (!domains.isEmpty()) {
+					found = domains;
+					break;
+				}
+			}
+			results.add(found);
+		}
+		DomainEnumeration result = new DomainEnumeration(results.get(0), first(results.get(1)),
+				results.get(2), first(results.get(3)), results.get(4), ttl == Long.MAX_VALUE ? DomainEnumeration.DEFAULT_TTL : ttl);
+		if (!Thread.currentThread().isInterrupted()) {
+			enumeration = result;
+		}
+		return result;
+	}
+
+	private static String first(List<String> domains) {
+		return domains.isEmpty() ? null : domains.get(0);
+	}
+
 	/**
 	 * Get all domains pointed to by the given resource record name,
-	 * searching all computer domains.
+	 * in the first computer domain that has any.
 	 * @param rrName the DNS resource record name.
 	 * @return a collection of domain names.
 	 */
 	private Collection<String> getDomains(Name rrName) {
-		List<String> results = new ArrayList<String>();
 		for (Name domain : computerDomains) {
-			results.addAll(getDomains(rrName, domain));
+			List<String> domains = getDomains(rrName, domain);
+			if (!domains.isEmpty()) {
+				return domains;
+			}
 		}
-		return results;
+		return Collections.emptyList();
 	}
 
 	/**
@@ -105,23 +186,52 @@ class UnicastDnsSDDomainEnumerator implements DnsSDDomainEnumerator {
 	 * @return a collection of domain names.
 	 */
 	private List<String> getDomains(Name rrName, Name domainName) {
+		List<String> results = DnsSDFutures.await(lookup(getName(rrName, domainName)));
+		return results != null ? results : Collections.<String>emptyList();     // Null if interrupted
+	}
+
+	private static Name getName(Name rrName, Name domainName) {
 		try {
-			List<String> results = new ArrayList<String>();
-			Lookup lookup = new Lookup(Name.concatenate(rrName, domainName), Type.PTR);
-			Record[] records = lookup.run();
-			if (records != null) {
-				for (Record record : records) {
-					if (record instanceof PTRRecord) {
-						PTRRecord ptr = (PTRRecord) record;
-						Name name = ptr.getTarget();
-						results.add(name.toString());
-					}
-				}
-			}
-			return results;
+			return Name.concatenate(rrName, domainName);
 		} catch (NameTooLongException ex) {
 			throw new IllegalArgumentException("Domain name too long: " + domainName, ex);
 		}
 	}
 
+	/**
+	 * Look up the domains pointed to by the PTR records of a name.
+	 * @param name the name.
+	 * @return a future for the domain names, empty if the query failed.
+	 */
+	private CompletableFuture<List<String>> lookup(Name name) {
+		List<String> cached = cache.get(name);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return dnsClient.query(name, Type.PTR).handle((response, ex) -> {
+			if (ex != null) {
+				if (!(DnsSDFutures.unwrap(ex) instanceof IOException)) {
+					throw DnsSDFutures.unchecked(ex);
+				}
+				logger.log(Level.FINE, "Failed to query {0}: {1}", new Object[] { name, DnsSDFutures.unwrap(ex) });
+				return Collections.<String>emptyList();
+			}
+			Record[] records = DnsClient.getRecords(response, Section.ANSWER, name, Type.PTR);
+			List<String> results = new ArrayList<String>(records.length);
+			long ttl = Long.MAX_VALUE;
+			for (Record record : records) {
+				PTRRecord ptr = (PTRRecord) record;
+				results.add(ptr.getTarget().toString());
+				ttl = Math.min(ttl, ptr.getTTL());
+			}
+			results = Collections.unmodifiableList(results);
+			if (records.length > 0) {
+				cache.put(name, results, ttl, records.length);
+			} else if (DnsClient.isNegative(response, name, Type.PTR)) {
+				cache.put(name, results, dnsClient.getNegativeTimeToLive(response), 1);
+			}
+			return results;
+		});
+	}
+
 }
@@ -5,10 +5,11 @@
  */
 package com.github.danieln.dnssdjava;
 
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.xbill.DNS.Name;
 import org.xbill.DNS.TextParseException;
@@ -19,20 +20,36 @@ import org.xbill.DNS.TextParseException;
  */
 public class UnicastDnsSDFactory extends DnsSDFactory {
 
+	private UpdateServerFinder updateServerFinder;
+
 	UnicastDnsSDFactory() {
 	}
 
+	/**
+	 * Get the finder of update servers shared by the registrators,
+	 * which caches what it finds for the next registrator.
+	 * @return the update server finder.
+	 */
+	private synchronized UpdateServerFinder getUpdateServerFinder() {
+		if (updateServerFinder == null) {
+			updateServerFinder = new UpdateServerFinder(new DnsClient(getExecutor()));
+			// The servers may not be reachable, or not the right ones, on the new network
+			NetworkWatcher.getInstance().addListener((removed, added) -> updateServerFinder.clearServers());
+		}
+		return updateServerFinder;
+	}
+
 	@Override
 	public DnsSDDomainEnumerator createDomainEnumerator(Collection<String> computerDomains) {
-		List<Name> domains = new ArrayList<Name>(computerDomains.size());
+		Set<Name> domains = new LinkedHashSet<Name>();
 		for (String domain : computerDomains) {
 			try {
-				domains.add(Name.fromString(domain));
+				domains.add(Name.fromString(domain, Name.root));
 			} catch (TextParseException ex) {
 				throw new IllegalArgumentException("Invalid domain name: " + domain, ex);
 			}
 		}
-		return new UnicastDnsSDDomainEnumerator(domains);
+		return new UnicastDnsSDDomainEnumerator(new ArrayList<Name>(domains), getExecutor());
 	}
 
 	@Override
@@ -45,15 +62,13 @@ public class UnicastDnsSDFactory extends DnsSDFactory {
 				throw new IllegalArgumentException("Invalid domain name: " + domain, ex);
 			}
 		}
-		return new UnicastDnsSDBrowser(domains);
+		return new UnicastDnsSDBrowser(domains, getExecutor());
 	}
 
 	@Override
 	public DnsSDRegistrator createRegistrator(String registeringDomain) throws DnsSDException {
 		try {
-			return new UnicastDnsSDRegistrator(Name.fromString(registeringDomain));
-		} catch (UnknownHostException ex) {
-			throw new DnsSDException("Failed to find DNS update server for domain: " + registeringDomain, ex);
+			return new UnicastDnsSDRegistrator(Name.fromString(registeringDomain), getUpdateServerFinder(), getExecutor());
 		} catch (TextParseException ex) {
 			throw new IllegalArgumentException("Invalid domain name: " + registeringDomain, ex);
 		}
@@ -6,29 +6,50 @@
 package com.github.danieln.dnssdjava;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.xbill.DNS.Address;
-import org.xbill.DNS.Cache;
 import org.xbill.DNS.DClass;
-import org.xbill.DNS.Lookup;
+import org.xbill.DNS.DNSInput;
+import org.xbill.DNS.DNSOutput;
+import org.xbill.DNS.Header;
 import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
 import org.xbill.DNS.NameTooLongException;
+import org.xbill.DNS.OPTRecord;
 import org.xbill.DNS.PTRRecord;
 import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
-import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SOARecord;
 import org.xbill.DNS.SRVRecord;
 import org.xbill.DNS.Section;
-import org.xbill.DNS.SimpleResolver;
 import org.xbill.DNS.TSIG;
 import org.xbill.DNS.TXTRecord;
 import org.xbill.DNS.TextParseException;
@@ -38,71 +59,151 @@ import org.xbill.DNS.Update;
 
 /**
  * Unicast {@link DnsSDRegistrator} implementation backed by dnsjava.
+ * <p>
+ * Several services registered or unregistered together are sent in as few update
+ * messages as possible, at most "dnssd.update.size" bytes each (system property).
+ * <p>
+ * Registrations ask the server for an update lease (RFC 9664) of "dnssd.update.lease"
+ * seconds, 0 to not use leases. The server removes the records of a service when
+ * its lease runs out, so services of a crashed process don't linger. The leases
+ * are renewed in the background before they run out, on a timer shared by all
+ * registrators, with the renewals that fall due together sent in as few updates
+ * as possible. Servers that don't support leases keep the records until they are
+ * unregistered.
+ * <p>
+ * When the last instance of a service type is unregistered the service type is
+ * removed as well. This is done "dnssd.update.cleanupdelay" milliseconds later,
+ * together with other types unregistered in the meantime, so that unregistering
+ * many instances of a type doesn't try to remove the type after each one.
+ * Unregistering several services at once removes the types before returning.
+ * <p>
+ * Updates are sent to the zone the records belong to, found from its SOA record,
+ * and to the servers given by the "_dns-update._udp" SRV records of the registration
+ * domain, or the primary master of the zone if there are none. If the records of an
+ * update are in more than one zone the update is split into one message per zone.
+ * When there are several servers they are chosen by SRV priority and weight, and
+ * an update that a server refuses, or that can't reach the server, is sent to the
+ * next one. An update that gets no response is not sent again, it may have been
+ * applied already.
  * @author Daniel Nilsson
  */
 class UnicastDnsSDRegistrator implements DnsSDRegistrator {
 
 	private static final Logger logger = Logger.getLogger(UnicastDnsSDBrowser.class.getName());
 
-	private static final Name DNSUPDATE_UDP = Name.fromConstantString("_dns-update._udp");
 	private static final Name SERVICES_DNSSD_UDP = Name.fromConstantString("_services._dns-sd._udp");
+
+	/**
+	 * The default maximum size of an update message with several services, in bytes.
+	 * Messages too large for UDP are sent over TCP.
+	 */
+	private static final int DEFAULT_MAX_UPDATE_SIZE = 16384;
+
+	/**
+	 * Space left in update messages for a TSIG record, in bytes.
+	 */
+	private static final int TSIG_RESERVE = 256;
+
+	/**
+	 * The default time to wait before removing service types left without instances, in milliseconds.
+	 */
+	private static final long DEFAULT_CLEANUP_DELAY = 1000;
+
+	/**
+	 * The EDNS0 option code of the update lease (RFC 9664).
+	 */
+	private static final int UPDATE_LEASE = 2;
+
+	/**
+	 * The size of an OPT record with an update lease option, in bytes.
+	 */
+	private static final int LEASE_OPT_SIZE = 19;
+
+	/**
+	 * The UDP payload size given in the OPT record (the DNS Flag Day 2020 recommendation).
+	 */
+	private static final int EDNS_PAYLOAD_SIZE = 1232;
+
+	/**
+	 * The default update lease asked for, in seconds.
+	 */
+	private static final long DEFAULT_LEASE = 7200;
+
+	/**
+	 * The shortest lease to renew at, in seconds (RFC 9664 section 4.1).
+	 */
+	private static final long MIN_LEASE = 30;
+
+	/**
+	 * How long to wait before trying again after a failed lease renewal, in seconds.
+	 */
+	private static final long RENEW_RETRY_INTERVAL = 60;
 	
 	private final Name registrationDomain;
-	private final Resolver resolver;
+	private final UpdateServerFinder serverFinder;
 	private final Name servicesName;
+	private final ExecutorService executor;
+
+	private final int maxUpdateSize;
+	private final long leaseTime;
+
+	/**
+	 * The leases of the services registered by this registrator, by service name.
+	 */
+	private final Map<ServiceName, Lease> leases = new ConcurrentHashMap<ServiceName, Lease>();
+	private final TimerWheel.Handler<Lease> renewer;
+
+	/**
+	 * Held while lease refreshes are sent, so that a service can't be unregistered or
+	 * changed while a refresh of its old records is in flight. Taken before the lock
+	 * on this registrator.
+	 */
+	private final Object leaseLock = new Object();
 
+	/**
+	 * The data of the services registered by this registrator, as last sent to the server.
+	 */
+	private final Map<ServiceName, ServiceData> registered = new ConcurrentHashMap<ServiceName, ServiceData>();
+
+	/**
+	 * Service types to remove if they have no instances left, and the task that will do it.
+	 */
+	private final Set<Name> pendingTypes = new LinkedHashSet<Name>();
+	private ScheduledFuture<?> cleanup;
+	private final long cleanupDelay;
+
+	/**
+	 * Cleared if the server rejects updates with a lease.
+	 */
+	private volatile boolean leaseSupported = true;
+
+	private volatile TSIG tsig;
 	private int timeToLive = 60;
-	private String localHostname;
+	private volatile String localHostname;
+	private volatile long localHostnameGeneration;
 	
 	/**
 	 * Create a UnicastDnsSDRegistrator.
 	 * @param registrationDomain the registration domain.
-	 * @throws UnknownHostException if the DNS server name for the domain failed to resolve.
+	 * @param serverFinder the finder of the servers to send updates to.
+	 * @param executor the executor used to run asynchronous updates.
 	 */
-	UnicastDnsSDRegistrator(Name registrationDomain) throws UnknownHostException {
+	UnicastDnsSDRegistrator(Name registrationDomain, UpdateServerFinder serverFinder, ExecutorService executor) {
 		try {
 			this.registrationDomain = registrationDomain;
-			this.resolver = findUpdateResolver(registrationDomain);
+			this.serverFinder = serverFinder;
 			this.servicesName = Name.concatenate(SERVICES_DNSSD_UDP, registrationDomain);
+			this.executor = executor;
+			this.maxUpdateSize = Integer.getInteger("dnssd.update.size", DEFAULT_MAX_UPDATE_SIZE);
+			this.leaseTime = Long.getLong("dnssd.update.lease", DEFAULT_LEASE);
+			this.renewer = due -> executor.execute(() -> renew(due));
+			this.cleanupDelay = Long.getLong("dnssd.update.cleanupdelay", DEFAULT_CLEANUP_DELAY);
 			logger.log(Level.INFO, "Created DNS-SD Registrator for domain {0}", registrationDomain);
 		} catch (NameTooLongException e) {
 			throw new IllegalArgumentException("Domain name too long: " + registrationDomain, e);
 		}
 	}
 
-	/**
-	 * Create a DNS {@link Resolver} to handle updates to the given domain.
-	 * @param domain the domain for which updates will be generated.
-	 * @return a Resolver configured with the DNS server that handles zone for that domain.
-	 * @throws UnknownHostException if the DNS server name for the domain failed to resolve.
-	 */
-	private Resolver findUpdateResolver(Name domain) throws UnknownHostException {
-		SimpleResolver simpleResolver = null;
-		try {
-			Lookup lookup = new Lookup(Name.concatenate(DNSUPDATE_UDP, domain), Type.SRV);
-			Record[] records = lookup.run();
-			if (records != null) {
-				for (Record record : records) {
-					if (record instanceof SRVRecord) {
-						SRVRecord srv = (SRVRecord) record;
-						simpleResolver = new SimpleResolver();
-						InetAddress addr = Address.getByName(srv.getTarget().toString());
-						InetSocketAddress socaddr = new InetSocketAddress(addr, srv.getPort());
-						logger.log(Level.INFO, "Using DNS server {0} to perform updates.", socaddr);
-						simpleResolver.setAddress(socaddr);
-						break;
-					}
-				}
-			}
-		} catch (NameTooLongException e) {
-			logger.log(Level.WARNING, "Failed to lookup update DNS server", e);
-		}
-		if (simpleResolver == null) {
-			simpleResolver = new SimpleResolver();
-		}
-		return simpleResolver;
-	}
-	
 	@Override
 	public ServiceName makeServiceName(String name, ServiceType type) {
 		return new ServiceName(name, type, registrationDomain.toString());
@@ -110,22 +211,28 @@ class UnicastDnsSDRegistrator implements DnsSDRegistrator {
 	
 	@Override
 	public String getLocalHostName() throws UnknownHostException {
-		if (localHostname == null) {
+		long generation = NetworkWatcher.getInstance().getGeneration();
+		String hostname = localHostname;
+		if (hostname == null || localHostnameGeneration != generation) {
+			hostname = null;
 			List<String> names = new ArrayList<String>();
-			names.addAll(DomainUtil.getComputerHostNames());
+			names.addAll(DomainUtil.getComputerHostNames(new DnsClient(executor), DnsSDFactory.getReverseLookupTimeout()));
 			names.add(InetAddress.getLocalHost().getCanonicalHostName());
 			names.add(InetAddress.getLocalHost().getHostName());
 			for (String name : names) {
 				if (!name.startsWith("localhost") && !name.matches("^([0-9]{1,3}\\.){3}[0-9]{1,3}$")) {
-					localHostname = name.endsWith(".") ? name : (name + ".");
+					hostname = name.endsWith(".") ? name : (name + ".");
 					break;
 				}
 			}
+			if (hostname == null) {
+				throw new UnknownHostException();
+			}
+			// Found again when the network changes
+			localHostnameGeneration = generation;
+			localHostname = hostname;
 		}
-		if (localHostname == null) {
-			throw new UnknownHostException();
-		}
-		return localHostname;
+		return hostname;
 	}
 	
 	@Override
@@ -141,57 +248,33 @@ class UnicastDnsSDRegistrator implements DnsSDRegistrator {
 	@Override
 	public void setTSIGKey(String name, String algorithm, String key) {
 		if (name != null && algorithm != null && key != null) {
-			resolver.setTSIGKey(new TSIG(algorithm, name, key));
+			tsig = new TSIG(algorithm, name, key);
 		} else {
-			resolver.setTSIGKey(null);
+			tsig = null;
 		}
 	}
 	
 	@Override
 	public boolean registerService(ServiceData serviceData) throws DnsSDException {
 		try {
-			ServiceName serviceName = serviceData.getName();
-			Name dnsName = serviceName.toDnsName();
-			Name typeName = new Name(serviceName.getType().toDnsString(), registrationDomain);
-			List<Name> subtypes = new ArrayList<Name>(serviceName.getType().getSubtypes().size());
-			for (String subtype : serviceName.getType().toDnsStringsWithSubtype()) {
-				subtypes.add(new Name(subtype, registrationDomain));
-			}
-			Name target = new Name(serviceData.getHost());
-			List<String> strings = new ArrayList<String>();
-			for (Map.Entry<String, String> entry : serviceData.getProperties().entrySet()) {
-				StringBuilder sb = new StringBuilder();
-				sb.append(entry.getKey());
-				if (entry.getValue() != null) {
-					sb.append('=').append(entry.getValue());
-				}
-				strings.add(sb.toString());
-			}
-			if (strings.isEmpty()) {
-				// Must not be empty
-				strings.add("");
-			}
-			Update update = new Update(registrationDomain);		// XXX Should really be the zone (SOA) for the RRs we are about to add
-			update.absent(dnsName);
-			update.add(new PTRRecord(servicesName, DClass.IN, timeToLive, typeName));
-			update.add(new PTRRecord(typeName, DClass.IN, timeToLive, dnsName));
-			for (Name subtype : subtypes) {
-				update.add(new PTRRecord(subtype, DClass.IN, timeToLive, dnsName));
+			Update update = newRegistration(serviceData);
+			boolean leased = addLease(update);
+			Message response = send(update);
+			if (isLeaseRejected(leased, response)) {
+				update = newRegistration(serviceData);
+				response = send(update);
 			}
-			update.add(new SRVRecord(dnsName, DClass.IN, timeToLive, 0, 0, serviceData.getPort(), target));
-			update.add(new TXTRecord(dnsName, DClass.IN, timeToLive, strings));
-			Message response = resolver.send(update);
 			switch (response.getRcode()) {
 				case Rcode.NOERROR:
 					flushCache(update);
+					registered.put(serviceData.getName(), new ServiceData(serviceData));
+					startLeases(Collections.singletonMap(serviceData.getName(), update), response);
 					return true;
 				case Rcode.YXDOMAIN:	// Prerequisite failed, the service already exists.
 					return false;
 				default:
 					throw new DnsSDException("Server returned error code: " + Rcode.string(response.getRcode()));
 			}
-		} catch (TextParseException ex) {
-			throw new IllegalArgumentException("Invalid service data: " + serviceData, ex);
 		} catch (IOException ex) {
 			throw new DnsSDException("Failed to send DNS update to server", ex);
 		}
@@ -199,65 +282,856 @@ class UnicastDnsSDRegistrator implements DnsSDRegistrator {
 	
 	@Override
 	public boolean unregisterService(ServiceName serviceName) throws DnsSDException {
+		stopLease(serviceName);
+		registered.remove(serviceName);
+		try {
+			Update update = newUnregistration(serviceName);
+			Message response = send(update);
+			switch (response.getRcode()) {
+				case Rcode.NOERROR:
+					flushCache(update);
+					break;
+				case Rcode.NXDOMAIN:	// Prerequisite failed, the service doesn't exist.
+					return false;
+				default:
+					throw new DnsSDException("Server returned error code: " + Rcode.string(response.getRcode()));
+			}
+			queueTypeCleanup(Collections.singleton(getTypeName(serviceName)));
+			return true;
+		} catch (IOException ex) {
+			throw new DnsSDException("Failed to send DNS update to server", ex);
+		}
+	}
+
+	@Override
+	public Map<ServiceName, Boolean> registerServices(Collection<ServiceData> services) throws DnsSDException {
+		Map<ServiceName, Update> updates = new LinkedHashMap<ServiceName, Update>();
+		for (ServiceData serviceData : services) {
+			if (!updates.containsKey(serviceData.getName())) {
+				updates.put(serviceData.getName(), newRegistration(serviceData));
+			}
+		}
+		Map<ServiceName, Boolean> result = new LinkedHashMap<ServiceName, Boolean>();
+		try {
+			for (Map<ServiceName, Update> batch : pack(updates)) {
+				sendBatch(batch, Rcode.YXDOMAIN, true, result);
+			}
+		} catch (IOException ex) {
+			throw new DnsSDException("Failed to send DNS update to server", ex);
+		} finally {
+			for (ServiceData serviceData : services) {
+				// Only the first data given for a name was sent
+				if (Boolean.TRUE.equals(result.get(serviceData.getName())) && updates.remove(serviceData.getName()) != null) {
+					registered.put(serviceData.getName(), new ServiceData(serviceData));
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Map<ServiceName, Boolean> unregisterServices(Collection<ServiceName> serviceNames) throws DnsSDException {
+		Map<ServiceName, Update> updates = new LinkedHashMap<ServiceName, Update>();
+		for (ServiceName serviceName : serviceNames) {
+			if (!updates.containsKey(serviceName)) {
+				updates.put(serviceName, newUnregistration(serviceName));
+			}
+		}
+		for (ServiceName serviceName : updates.keySet()) {
+			stopLease(serviceName);
+			registered.remove(serviceName);
+		}
+		Map<ServiceName, Boolean> result = new LinkedHashMap<ServiceName, Boolean>();
+		try {
+			for (Map<ServiceName, Update> batch : pack(updates)) {
+				sendBatch(batch, Rcode.NXDOMAIN, false, result);
+			}
+			// Remove the service types that have no instances left
+			Set<Name> typeNames = new LinkedHashSet<Name>();
+			for (Map.Entry<ServiceName, Boolean> entry : result.entrySet()) {
+				if (entry.getValue()) {
+					typeNames.add(getTypeName(entry.getKey()));
+				}
+			}
+			synchronized (pendingTypes) {
+				pendingTypes.addAll(typeNames);
+			}
+			cleanupTypes();
+		} catch (IOException ex) {
+			throw new DnsSDException("Failed to send DNS update to server", ex);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean updateService(ServiceData serviceData) throws DnsSDException {
+		ServiceName serviceName = serviceData.getName();
+		ServiceData previous = registered.get(serviceName);
+		boolean srvChanged = previous == null || previous.getPort() != serviceData.getPort()
+				|| !Objects.equals(previous.getHost(), serviceData.getHost());
+		boolean txtChanged = previous == null || !previous.getProperties().equals(serviceData.getProperties());
+		if (!srvChanged && !txtChanged) {
+			return true;
+		}
+		// A refresh of the old records mustn't be in flight while they are replaced
+		synchronized (leaseLock) {
+			try {
+				Update update = newReplacement(serviceData, srvChanged, txtChanged);
+				boolean leased = false;
+				if (leases.containsKey(serviceName)) {
+					// The lease starts over for the records in the update, so it must have all of them
+					addUnchanged(update, serviceData);
+					leased = addLease(update);
+				}
+				Message response = send(update);
+				if (isLeaseRejected(leased, response)) {
+					update = newReplacement(serviceData, srvChanged, txtChanged);
+					leased = false;
+					response = send(update);
+				}
+				switch (response.getRcode()) {
+					case Rcode.NOERROR:
+						flushCache(update);
+						registered.put(serviceName, new ServiceData(serviceData));
+						if (leased && getGrantedLease(response) >= 0) {
+							// Renew the lease with the new records
+							startLeases(Collections.singletonMap(serviceName, newRegistration(serviceData)), response);
+						} else {
+							stopLease(serviceName);
+						}
+						return true;
+					case Rcode.NXDOMAIN:	// Prerequisite failed, the service doesn't exist.
+						registered.remove(serviceName);
+						stopLease(serviceName);
+						return false;
+					default:
+						throw new DnsSDException("Server returned error code: " + Rcode.string(response.getRcode()));
+				}
+			} catch (IOException ex) {
+				throw new DnsSDException("Failed to send DNS update to server", ex);
+			}
+		}
+	}
+
+	@Override
+	public CompletableFuture<Boolean> updateServiceAsync(ServiceData serviceData) {
+		ServiceData copy = new ServiceData(serviceData);
+		return DnsSDFutures.submit(executor, () -> updateService(copy));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> registerServiceAsync(ServiceData serviceData) {
+		return DnsSDFutures.submit(executor, () -> registerService(serviceData));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> unregisterServiceAsync(ServiceName serviceName) {
+		return DnsSDFutures.submit(executor, () -> unregisterService(serviceName));
+	}
+
+	@Override
+	public CompletableFuture<Map<ServiceName, Boolean>> registerServicesAsync(Collection<ServiceData> services) {
+		List<ServiceData> copy = new ArrayList<ServiceData>(services);
+		return DnsSDFutures.submit(executor, () -> registerServices(copy));
+	}
+
+	@Override
+	public CompletableFuture<Map<ServiceName, Boolean>> unregisterServicesAsync(Collection<ServiceName> serviceNames) {
+		List<ServiceName> copy = new ArrayList<ServiceName>(serviceNames);
+		return DnsSDFutures.submit(executor, () -> unregisterServices(copy));
+	}
+
+	/**
+	 * Make an update that adds the records of a service, if the service name isn't taken.
+	 * @param serviceData the service to register.
+	 * @return the update.
+	 */
+	private Update newRegistration(ServiceData serviceData) {
 		try {
+			ServiceName serviceName = serviceData.getName();
 			Name dnsName = serviceName.toDnsName();
-			Name typeName = new Name(serviceName.getType().toDnsString(), registrationDomain);
+			Name typeName = getTypeName(serviceName);
 			List<Name> subtypes = new ArrayList<Name>(serviceName.getType().getSubtypes().size());
 			for (String subtype : serviceName.getType().toDnsStringsWithSubtype()) {
 				subtypes.add(new Name(subtype, registrationDomain));
 			}
-			Update update = new Update(registrationDomain);		// XXX Should really be the zone (SOA) for the RRs we are about to remove
+			Update update = new Update(registrationDomain);		// The zone is set when sent
+			update.absent(dnsName);
+			update.add(new PTRRecord(servicesName, DClass.IN, timeToLive, typeName));
+			update.add(new PTRRecord(typeName, DClass.IN, timeToLive, dnsName));
+			for (Name subtype : subtypes) {
+				update.add(new PTRRecord(subtype, DClass.IN, timeToLive, dnsName));
+			}
+			update.add(newSRV(serviceData));
+			update.add(newTXT(serviceData));
+			return update;
+		} catch (TextParseException ex) {
+			throw new IllegalArgumentException("Invalid service data: " + serviceData, ex);
+		}
+	}
+
+	/**
+	 * Make an update that replaces the SRV and/or TXT records of a service, if the service exists.
+	 * @param serviceData the new data of the service.
+	 * @param srv true to replace the SRV record.
+	 * @param txt true to replace the TXT record.
+	 * @return the update.
+	 */
+	private Update newReplacement(ServiceData serviceData, boolean srv, boolean txt) {
+		Name dnsName = serviceData.getName().toDnsName();
+		Update update = new Update(registrationDomain);		// The zone is set when sent
+		update.present(dnsName);
+		if (srv) {
+			update.delete(dnsName, Type.SRV);
+			update.add(newSRV(serviceData));
+		}
+		if (txt) {
+			update.delete(dnsName, Type.TXT);
+			update.add(newTXT(serviceData));
+		}
+		return update;
+	}
+
+	/**
+	 * Add the records of a service that a replacement doesn't change, adding them
+	 * again leaves them as they are but renews their lease.
+	 * @param update the replacement.
+	 * @param serviceData the new data of the service.
+	 */
+	private void addUnchanged(Update update, ServiceData serviceData) {
+		Set<Record> records = new HashSet<Record>(Arrays.asList(update.getSectionArray(Section.UPDATE)));
+		for (Record record : newRegistration(serviceData).getSectionArray(Section.UPDATE)) {
+			if (!records.contains(record)) {
+				update.addRecord(record, Section.UPDATE);
+			}
+		}
+	}
+
+	private SRVRecord newSRV(ServiceData serviceData) {
+		try {
+			Name target = new Name(serviceData.getHost());
+			return new SRVRecord(serviceData.getName().toDnsName(), DClass.IN, timeToLive, 0, 0, serviceData.getPort(), target);
+		} catch (TextParseException ex) {
+			throw new IllegalArgumentException("Invalid service data: " + serviceData, ex);
+		}
+	}
+
+	private TXTRecord newTXT(ServiceData serviceData) {
+		List<String> strings = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : serviceData.getProperties().entrySet()) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(entry.getKey());
+			if (entry.getValue() != null) {
+				sb.append('=').append(entry.getValue());
+			}
+			strings.add(sb.toString());
+		}
+		if (strings.isEmpty()) {
+			// Must not be empty
+			strings.add("");
+		}
+		return new TXTRecord(serviceData.getName().toDnsName(), DClass.IN, timeToLive, strings);
+	}
+
+	/**
+	 * Make an update that removes the records of a service, if the service exists.
+	 * The service type records are left in place.
+	 * @param serviceName the name of the service to remove.
+	 * @return the update.
+	 */
+	private Update newUnregistration(ServiceName serviceName) {
+		try {
+			Name dnsName = serviceName.toDnsName();
+			Name typeName = getTypeName(serviceName);
+			List<Name> subtypes = new ArrayList<Name>(serviceName.getType().getSubtypes().size());
+			for (String subtype : serviceName.getType().toDnsStringsWithSubtype()) {
+				subtypes.add(new Name(subtype, registrationDomain));
+			}
+			Update update = new Update(registrationDomain);		// The zone is set when sent
 			update.present(dnsName);
 			update.delete(new PTRRecord(typeName, DClass.IN, timeToLive, dnsName));
 			for (Name subtype : subtypes) {
 				update.delete(new PTRRecord(subtype, DClass.IN, timeToLive, dnsName));
 			}
 			update.delete(dnsName);
-			Message response = resolver.send(update);
-			switch (response.getRcode()) {
-				case Rcode.NOERROR:
-					flushCache(update);
-					break;
-				case Rcode.NXDOMAIN:	// Prerequisite failed, the service doesn't exist.
-					return false;
-				default:
-					throw new DnsSDException("Server returned error code: " + Rcode.string(response.getRcode()));
+			return update;
+		} catch (TextParseException ex) {
+			throw new IllegalArgumentException("Invalid service name: " + serviceName, ex);
+		}
+	}
+
+	private Name getTypeName(ServiceName serviceName) {
+		try {
+			return new Name(serviceName.getType().toDnsString(), registrationDomain);
+		} catch (TextParseException ex) {
+			throw new IllegalArgumentException("Invalid service name: " + serviceName, ex);
+		}
+	}
+
+	/**
+	 * Queue service types to be removed if they have no instances left.
+	 * The types queued within a short time of each other are cleaned up together.
+	 * @param typeNames the DNS names of the service types.
+	 */
+	private void queueTypeCleanup(Collection<Name> typeNames) {
+		synchronized (pendingTypes) {
+			pendingTypes.addAll(typeNames);
+			if (cleanup == null && !pendingTypes.isEmpty()) {
+				cleanup = DnsSDExecutors.scheduler().schedule(() -> executor.execute(() -> {
+					try {
+						cleanupTypes();
+					} catch (IOException ex) {
+						logger.log(Level.WARNING, "Failed to remove service types", ex);
+					}
+				}), cleanupDelay, TimeUnit.MILLISECONDS);
 			}
-			// Remove the service type if there are no instances left
-			update = new Update(registrationDomain);		// XXX Should really be the zone (SOA) for the RRs we are about to remove
+		}
+	}
+
+	/**
+	 * Remove the queued service types that have no instances left.
+	 * @throws IOException if an update couldn't be sent.
+	 */
+	private void cleanupTypes() throws IOException {
+		List<Name> typeNames;
+		synchronized (pendingTypes) {
+			typeNames = new ArrayList<Name>(pendingTypes);
+			pendingTypes.clear();
+			if (cleanup != null) {
+				cleanup.cancel(false);
+				cleanup = null;
+			}
+		}
+		if (!typeNames.isEmpty()) {
+			removeServiceTypes(typeNames);
+		}
+	}
+
+	/**
+	 * Remove the records for service types if there are no instances of the types left.
+	 * All types are removed in one update, if some type has instances left the
+	 * prerequisites fail, and the types are split in two and tried again.
+	 * @param typeNames the DNS names of the service types.
+	 * @throws IOException if an update couldn't be sent.
+	 */
+	private void removeServiceTypes(List<Name> typeNames) throws IOException {
+		Update update = new Update(registrationDomain);		// The zone is set when sent
+		for (Name typeName : typeNames) {
 			update.absent(typeName);
 			update.delete(new PTRRecord(servicesName, DClass.IN, timeToLive, typeName));
-			response = resolver.send(update);
-			switch (response.getRcode()) {
-				case Rcode.NOERROR:
-					flushCache(update);
-					logger.log(Level.FINE, "Removed service type record {0}", typeName);
-					break;
-				case Rcode.YXDOMAIN:	// Prerequisite failed, service instances exists
-					logger.log(Level.FINE, "Did not remove service type record {0}, instances left.", typeName);
-					break;
-				default:
-					logger.log(Level.WARNING, "Failed to remove service type {0}, server returned status {1}",
-							new Object[] { typeName, Rcode.string(response.getRcode()) });
+		}
+		Message response = send(update);
+		switch (response.getRcode()) {
+			case Rcode.NOERROR:
+				flushCache(update);
+				logger.log(Level.FINE, "Removed service type records {0}", typeNames);
+				break;
+			case Rcode.YXDOMAIN:	// Prerequisite failed, service instances exists
+				if (typeNames.size() == 1) {
+					logger.log(Level.FINE, "Did not remove service type record {0}, instances left.", typeNames.get(0));
+				} else {
+					int half = typeNames.size() / 2;
+					removeServiceTypes(typeNames.subList(0, half));
+					removeServiceTypes(typeNames.subList(half, typeNames.size()));
+				}
+				break;
+			default:
+				logger.log(Level.WARNING, "Failed to remove service types {0}, server returned status {1}",
+						new Object[] { typeNames, Rcode.string(response.getRcode()) });
+		}
+	}
+
+	/**
+	 * Split the updates of a number of services into batches that fit in one message each.
+	 * The size of a message is estimated from the uncompressed records, so it is never
+	 * underestimated. Records shared by several services are only counted once per batch.
+	 * @param updates the updates, by service name.
+	 * @return the batches.
+	 */
+	private List<Map<ServiceName, Update>> pack(Map<ServiceName, Update> updates) {
+		int overhead = Header.LENGTH + registrationDomain.length() + 4 + LEASE_OPT_SIZE + TSIG_RESERVE;
+		List<Map<ServiceName, Update>> batches = new ArrayList<Map<ServiceName, Update>>();
+		Map<ServiceName, Update> batch = new LinkedHashMap<ServiceName, Update>();
+		Set<Record> records = new HashSet<Record>();
+		int size = overhead;
+		for (Map.Entry<ServiceName, Update> entry : updates.entrySet()) {
+			int serviceSize = getSize(entry.getValue(), records);
+			if (!batch.isEmpty() && size + serviceSize > maxUpdateSize) {
+				batches.add(batch);
+				batch = new LinkedHashMap<ServiceName, Update>();
+				records.clear();
+				size = overhead;
+				serviceSize = getSize(entry.getValue(), records);
+			}
+			batch.put(entry.getKey(), entry.getValue());
+			Collections.addAll(records, entry.getValue().getSectionArray(Section.UPDATE));
+			size += serviceSize;
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		return batches;
+	}
+
+	/**
+	 * Get the uncompressed size of the records of an update.
+	 * @param update the update.
+	 * @param skip update records already in the batch, not counted.
+	 * @return the size in bytes.
+	 */
+	private static int getSize(Update update, Set<Record> skip) {
+		int size = 0;
+		for (Record record : update.getSectionArray(Section.PREREQ)) {
+			size += record.toWire(Section.PREREQ).length;
+		}
+		for (Record record : update.getSectionArray(Section.UPDATE)) {
+			if (!skip.contains(record)) {
+				size += record.toWire(Section.UPDATE).length;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Send the updates of a batch of services in one message.
+	 * A failed prerequisite makes the server reject the whole message, so the batch
+	 * is then split in two and each half sent again, until the services whose
+	 * prerequisites fail are found.
+	 * @param batch the updates, by service name.
+	 * @param prerequisiteFailed the response code for a failed prerequisite.
+	 * @param register true if the updates are registrations, which get leases.
+	 * @param result the map to put the result of each service in.
+	 * @throws IOException if an update couldn't be sent.
+	 * @throws DnsSDException if the server returned an error.
+	 */
+	private void sendBatch(Map<ServiceName, Update> batch, int prerequisiteFailed, boolean register, Map<ServiceName, Boolean> result) throws IOException, DnsSDException {
+		Update update = merge(batch.values());
+		boolean leased = register && addLease(update);
+		Message response = send(update);
+		if (isLeaseRejected(leased, response)) {
+			update = merge(batch.values());
+			response = send(update);
+		}
+		int rcode = response.getRcode();
+		if (rcode == Rcode.NOERROR) {
+			flushCache(update);
+			for (ServiceName serviceName : batch.keySet()) {
+				result.put(serviceName, true);
+			}
+			if (register) {
+				startLeases(batch, response);
+			}
+		} else if (rcode == prerequisiteFailed && batch.size() == 1) {
+			result.put(batch.keySet().iterator().next(), false);
+		} else if (rcode == prerequisiteFailed) {
+			logger.log(Level.FINE, "Prerequisite failed for a batch of {0} services, splitting it", batch.size());
+			Map<ServiceName, Update> first = new LinkedHashMap<ServiceName, Update>();
+			Map<ServiceName, Update> second = new LinkedHashMap<ServiceName, Update>();
+			for (Map.Entry<ServiceName, Update> entry : batch.entrySet()) {
+				(first.size() < batch.size() / 2 ? first : second).put(entry.getKey(), entry.getValue());
+			}
+			sendBatch(first, prerequisiteFailed, register, result);
+			sendBatch(second, prerequisiteFailed, register, result);
+		} else {
+			throw new DnsSDException("Server returned error code: " + Rcode.string(rcode));
+		}
+	}
+
+	/**
+	 * Merge the updates of several services into one message.
+	 * Update records shared by the services are only included once.
+	 * @param updates the updates.
+	 * @return the merged update.
+	 */
+	private Update merge(Collection<Update> updates) {
+		Update update = new Update(registrationDomain);		// The zone is set when sent
+		Set<Record> records = new HashSet<Record>();
+		for (Update part : updates) {
+			for (Record record : part.getSectionArray(Section.PREREQ)) {
+				update.addRecord(record, Section.PREREQ);
+			}
+			for (Record record : part.getSectionArray(Section.UPDATE)) {
+				if (records.add(record)) {
+					update.addRecord(record, Section.UPDATE);
+				}
 			}
+		}
+		return update;
+	}
+
+	/**
+	 * Ask for an update lease for the records added by an update.
+	 * @param update the update.
+	 * @return true if a lease was asked for, false if leases aren't used.
+	 */
+	private boolean addLease(Message update) {
+		if (leaseTime <= 0 || !leaseSupported) {
+			return false;
+		}
+		DNSOutput data = new DNSOutput();
+		data.writeU32(leaseTime);
+		List<OPTRecord.Option> options = Collections.singletonList(new OPTRecord.Option(UPDATE_LEASE, data.toByteArray()));
+		update.addRecord(new OPTRecord(EDNS_PAYLOAD_SIZE, 0, 0, 0, options), Section.ADDITIONAL);
+		return true;
+	}
+
+	/**
+	 * Check if the server rejected an update because of its lease.
+	 * Servers that don't know EDNS0 respond with FORMERR or NOTIMP (RFC 6891 section 7),
+	 * leases aren't used with them any more.
+	 * @param leased true if the update asked for a lease.
+	 * @param response the response.
+	 * @return true if the update should be sent again without a lease.
+	 */
+	private boolean isLeaseRejected(boolean leased, Message response) {
+		int rcode = response.getRcode();
+		if (leased && (rcode == Rcode.FORMERR || rcode == Rcode.NOTIMP)) {
+			logger.log(Level.INFO, "DNS server doesn''t support update leases ({0}), registering without", Rcode.string(rcode));
+			leaseSupported = false;
 			return true;
-		} catch (TextParseException ex) {
-			throw new IllegalArgumentException("Invalid service name: " + serviceName, ex);
+		}
+		return false;
+	}
+
+	/**
+	 * Get the lease granted by the server.
+	 * @param response the response to an update asking for a lease.
+	 * @return the lease in seconds, or -1 if the server didn't grant a lease
+	 *         and will keep the records until they are removed.
+	 */
+	private static long getGrantedLease(Message response) {
+		OPTRecord opt = response.getOPT();
+		if (opt != null) {
+			for (Object data : opt.getOptions(UPDATE_LEASE)) {
+				try {
+					return new DNSInput((byte[]) data).readU32();     // Safe cast
+				} catch (IOException ex) {
+					logger.log(Level.FINE, "Invalid update lease option", ex);
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Start renewing the leases of services that have been registered.
+	 * @param registrations the registration updates, by service name.
+	 * @param response the response to the registrations.
+	 */
+	private void startLeases(Map<ServiceName, Update> registrations, Message response) {
+		long granted = getGrantedLease(response);
+		if (granted < 0) {
+			return;
+		}
+		for (Map.Entry<ServiceName, Update> entry : registrations.entrySet()) {
+			// The refresh adds the same records, without the prerequisites (RFC 9664 section 4.2)
+			Update refresh = new Update(registrationDomain);
+			for (Record record : entry.getValue().getSectionArray(Section.UPDATE)) {
+				refresh.addRecord(record, Section.UPDATE);
+			}
+			Lease lease = new Lease(entry.getKey(), refresh);
+			// Scheduled under the same lock, so a lease in the map always has a timeout
+			synchronized (this) {
+				Lease old = leases.put(entry.getKey(), lease);
+				if (old != null) {
+					old.timeout.cancel();
+				}
+				scheduleRenewal(lease, getRenewalDelay(granted));
+			}
+		}
+	}
+
+	private synchronized void dropLease(Lease lease) {
+		leases.remove(lease.serviceName, lease);
+	}
+
+	/**
+	 * Stop renewing the lease of a service, waiting for any refresh in flight.
+	 * @param serviceName the name of the service.
+	 */
+	private void stopLease(ServiceName serviceName) {
+		synchronized (leaseLock) {
+			synchronized (this) {
+				Lease lease = leases.remove(serviceName);
+				if (lease != null) {
+					lease.timeout.cancel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the time to wait before renewing a lease, 80% of the lease.
+	 * @param granted the lease in seconds.
+	 * @return the delay in milliseconds.
+	 */
+	private static long getRenewalDelay(long granted) {
+		return Math.max(granted, MIN_LEASE) * 800;
+	}
+
+	private synchronized void scheduleRenewal(Lease lease, long delay) {
+		if (leases.get(lease.serviceName) == lease) {
+			lease.timeout = TimerWheel.getInstance().schedule(renewer, lease, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Renew leases that are due, packing the refreshes into as few updates as possible.
+	 * Leases that fail to renew are tried again after a while. If the server no longer
+	 * grants leases the records are left as they are, until the services are unregistered.
+	 * @param due the leases to renew.
+	 */
+	private void renew(List<Lease> due) {
+		Map<ServiceName, Update> refreshes = new LinkedHashMap<ServiceName, Update>();
+		Map<ServiceName, Lease> renewing = new LinkedHashMap<ServiceName, Lease>();
+		for (Lease lease : due) {
+			if (leases.get(lease.serviceName) == lease) {
+				refreshes.put(lease.serviceName, lease.refresh);
+				renewing.put(lease.serviceName, lease);
+			}
+		}
+		for (Map<ServiceName, Update> batch : pack(refreshes)) {
+			synchronized (leaseLock) {
+				renew(batch, renewing);
+			}
+		}
+		logger.log(Level.FINE, "Renewed update leases of {0} services", renewing.size());
+	}
+
+	/**
+	 * Renew a batch of leases, skipping those stopped since the batch was made.
+	 * Must be called with the lease lock held.
+	 * @param batch the refreshes to send, by service name.
+	 * @param renewing the leases being renewed, by service name.
+	 */
+	private void renew(Map<ServiceName, Update> batch, Map<ServiceName, Lease> renewing) {
+		batch.keySet().removeIf(serviceName -> leases.get(serviceName) != renewing.get(serviceName));
+		if (batch.isEmpty()) {
+			return;
+		}
+		long delay = TimeUnit.SECONDS.toMillis(RENEW_RETRY_INTERVAL);
+		try {
+			Update update = merge(batch.values());
+			if (!addLease(update)) {
+				// Leases have been turned off, the records stay until unregistered
+				return;
+			}
+			Message response = send(update);
+			long granted = getGrantedLease(response);
+			if (response.getRcode() == Rcode.NOERROR && granted >= 0) {
+				delay = getRenewalDelay(granted);
+			} else if (response.getRcode() == Rcode.NOERROR || isLeaseRejected(true, response)) {
+				if (response.getRcode() == Rcode.NOERROR) {
+					// No lease granted, the server keeps the records until they are removed
+					logger.log(Level.INFO, "DNS server no longer grants update leases, keeping {0} services without",
+							batch.size());
+				}
+				for (ServiceName serviceName : batch.keySet()) {
+					dropLease(renewing.get(serviceName));
+				}
+				return;
+			} else {
+				logger.log(Level.WARNING, "Failed to renew update lease of {0} services, server returned status {1}",
+						new Object[] { batch.size(), Rcode.string(response.getRcode()) });
+			}
 		} catch (IOException ex) {
-			throw new DnsSDException("Failed to send DNS update to server", ex);
+			logger.log(Level.WARNING, "Failed to renew update lease of " + batch.size() + " services", ex);
+		}
+		for (ServiceName serviceName : batch.keySet()) {
+			scheduleRenewal(renewing.get(serviceName), delay);
+		}
+	}
+
+	/**
+	 * Send an update to the zones of its records and wait for the response.
+	 * The records are normally all in the same zone, if not the update is split into
+	 * one message per zone. The messages for zones with prerequisites are sent first,
+	 * and the rest are only sent if they succeed.
+	 * @param update the update, with any zone in its zone section.
+	 * @return the response, the first one that failed if the update was split.
+	 * @throws IOException if there was no response.
+	 */
+	private Message send(Update update) throws IOException {
+		Map<Name, SOARecord> zones = findZones(update);
+		Map<Name, Update> parts = new LinkedHashMap<Name, Update>();
+		Map<Name, SOARecord> soas = new HashMap<Name, SOARecord>();
+		for (int section : new int[] { Section.PREREQ, Section.UPDATE }) {
+			for (Record record : update.getSectionArray(section)) {
+				SOARecord soa = zones.get(record.getName());
+				Name zone = soa != null ? soa.getName() : registrationDomain;
+				if (soa != null) {
+					soas.put(zone, soa);
+				}
+				Update part = parts.get(zone);
+				if (part == null) {
+					part = new Update(zone);
+					parts.put(zone, part);
+				}
+				part.addRecord(record, section);
+			}
+		}
+		if (parts.isEmpty()) {
+			return send(update, getUpdateServers(null));
+		}
+		if (parts.size() > 1) {
+			logger.log(Level.FINE, "Update spans the zones {0}, splitting it", parts.keySet());
+		}
+		Message first = null;
+		for (Map.Entry<Name, Update> entry : parts.entrySet()) {
+			Update part = entry.getValue();
+			if (update.getOPT() != null) {
+				part.addRecord(update.getOPT(), Section.ADDITIONAL);
+			}
+			Message response = send(part, getUpdateServers(soas.get(entry.getKey())));
+			if (response.getRcode() != Rcode.NOERROR) {
+				return response;
+			}
+			if (first == null) {
+				first = response;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Find the zones of the names in an update.
+	 * @return the SOA record of the zone of each name. Names whose zone wasn't found are left out.
+	 */
+	private Map<Name, SOARecord> findZones(Update update) {
+		Map<Name, CompletableFuture<SOARecord>> futures = new LinkedHashMap<Name, CompletableFuture<SOARecord>>();
+		for (int section : new int[] { Section.PREREQ, Section.UPDATE }) {
+			for (Record record : update.getSectionArray(section)) {
+				if (!futures.containsKey(record.getName())) {
+					futures.put(record.getName(), serverFinder.findZone(record.getName()));
+				}
+			}
+		}
+		Map<Name, SOARecord> zones = new HashMap<Name, SOARecord>();
+		for (Map.Entry<Name, CompletableFuture<SOARecord>> entry : futures.entrySet()) {
+			try {
+				zones.put(entry.getKey(), await(entry.getValue()));
+			} catch (IOException ex) {
+				logger.log(Level.FINE, "Failed to find the zone of {0}, assuming {1}: {2}",
+						new Object[] { entry.getKey(), registrationDomain, ex });
+			}
+		}
+		return zones;
+	}
+
+	/**
+	 * Get the servers to send an update for a zone to.
+	 * These are the servers given for the registration domain if there are any,
+	 * else the primary master of the zone.
+	 * @param soa the SOA record of the zone, or null if not known.
+	 * @return the servers.
+	 * @throws IOException if no server could be found.
+	 */
+	private ServerSelector getUpdateServers(SOARecord soa) throws IOException {
+		ServerSelector updateServers = serverFinder.getDomainServers(registrationDomain);
+		if (!updateServers.isEmpty()) {
+			return updateServers;
+		}
+		if (soa != null) {
+			return serverFinder.getPrimaryMaster(soa);
+		}
+		return serverFinder.getDefaultServers();
+	}
+
+	/**
+	 * Send a message to one of several servers and wait for the response.
+	 * An update must not be applied twice, so the message is only sent to the next
+	 * server if the previous one certainly didn't apply it: it refused the update
+	 * (REFUSED, NOTAUTH or NOTIMP), or it couldn't be connected to. A server that
+	 * doesn't respond may still have applied the update, then the update fails and
+	 * the server is tried last for a while.
+	 * @param message the message, signed with the TSIG key if there is one.
+	 * @param servers the servers to send to.
+	 * @return the response.
+	 * @throws IOException if there was no response.
+	 */
+	private Message send(Message message, ServerSelector servers) throws IOException {
+		List<InetSocketAddress> order = servers.select();
+		IOException failure = null;
+		for (int i = 0; i < order.size(); i++) {
+			InetSocketAddress server = order.get(i);
+			boolean last = i == order.size() - 1;
+			// The transport adds the TSIG record to the message, so each try needs a copy
+			Message copy = i == 0 ? message : (Message) message.clone();
+			try {
+				Message response = await(DnsTransport.getInstance().send(copy, Collections.singletonList(server), tsig));
+				int rcode = response.getRcode();
+				if (!last && (rcode == Rcode.REFUSED || rcode == Rcode.NOTAUTH || rcode == Rcode.NOTIMP)) {
+					logger.log(Level.WARNING, "Update server {0} refused the update: {1}, trying the next one",
+							new Object[] { server, Rcode.string(rcode) });
+					servers.failed(server);
+					continue;
+				}
+				servers.succeeded(server);
+				return response;
+			} catch (ConnectException | NoRouteToHostException | PortUnreachableException ex) {
+				// Nothing was sent, or nothing received it
+				logger.log(Level.WARNING, "Failed to reach update server {0}{1}",
+						new Object[] { server, last ? "" : ", trying the next one" });
+				servers.failed(server);
+				failure = ex;
+			} catch (IOException ex) {
+				if (!Thread.currentThread().isInterrupted()) {
+					servers.failed(server);
+				}
+				throw ex;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Wait for the result of a future, for the blocking methods.
+	 * @throws IOException if the future failed with an IOException.
+	 */
+	private static <T> T await(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the DNS server");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			if (ex.getCause() instanceof TimeoutException) {
+				throw new SocketTimeoutException(ex.getCause().getMessage());
+			}
+			throw DnsSDFutures.unchecked(ex.getCause());
+		}
+	}
+
+	/**
+	 * The lease of a registered service.
+	 */
+	private static class Lease {
+
+		final ServiceName serviceName;
+		final Update refresh;
+		TimerWheel.Timeout timeout;
+
+		Lease(ServiceName serviceName, Update refresh) {
+			this.serviceName = serviceName;
+			this.refresh = refresh;
 		}
 	}
 
 	/**
-	 * Flush all records related to the update from the default cache.
+	 * Flush all names changed by the update from the caches of the browsers,
+	 * so that they see the change at once.
 	 * @param update the update to flush.
 	 */
 	private static void flushCache(Update update) {
-		Cache cache = Lookup.getDefaultCache(DClass.IN);
-		Record[] records = update.getSectionArray(Section.UPDATE);
-		for (Record rec : records) {
-			logger.log(Level.FINE, "Flush name {0} due to update: {1}", new Object[] { rec.getName(), rec });
-			cache.flushName(rec.getName());
+		Set<Name> names = new LinkedHashSet<Name>();
+		for (Record rec : update.getSectionArray(Section.UPDATE)) {
+			names.add(rec.getName());
 		}
+		logger.log(Level.FINE, "Flush names {0} due to update", names);
+		UnicastDnsSDBrowser.flushCaches(names);
 	}
 }
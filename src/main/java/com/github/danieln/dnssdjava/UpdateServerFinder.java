@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.NameTooLongException;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Type;
+
+/**
+ * Internal helper class for finding the servers to send updates to.
+ * <p>
+ * The servers given for each registration domain, the zones of the names and
+ * the addresses of their primary masters are cached for the TTL of the records
+ * they came from. One instance is shared by all registrators created by a factory,
+ * so that registrators for a domain created after the first one don't need
+ * to look up anything.
+ * @author Daniel Nilsson
+ */
+class UpdateServerFinder {
+
+	private static final Logger logger = Logger.getLogger(UpdateServerFinder.class.getName());
+
+	private static final Name DNSUPDATE_UDP = Name.fromConstantString("_dns-update._udp");
+
+	/**
+	 * The maximum number of domains and hosts in the caches.
+	 */
+	private static final int CACHE_SIZE = 100;
+
+	/**
+	 * The shortest time in seconds to remember that a domain has no update servers,
+	 * or that they couldn't be looked up. Negative answers without a SOA record
+	 * would otherwise not be remembered at all.
+	 */
+	private static final long MIN_NEGATIVE_TTL = 60;
+
+	private final DnsClient dnsClient;
+	private final ZoneFinder zoneFinder;
+	private final ExpiringCache<Name, ServerSelector> domainServers = new ExpiringCache<Name, ServerSelector>(CACHE_SIZE);
+	private final ExpiringCache<Name, ServerSelector> primaryMasters = new ExpiringCache<Name, ServerSelector>(CACHE_SIZE);
+	private ServerSelector defaultServers;
+
+	/**
+	 * Create a new UpdateServerFinder.
+	 * @param dnsClient the client used for the lookups.
+	 */
+	UpdateServerFinder(DnsClient dnsClient) {
+		this.dnsClient = dnsClient;
+		this.zoneFinder = new ZoneFinder(dnsClient);
+	}
+
+	/**
+	 * Get the servers given by the "_dns-update._udp" SRV records of a registration domain.
+	 * @param domain the registration domain.
+	 * @return the servers, none if updates should go to the primary master of each zone,
+	 *         or if the lookup failed.
+	 * @throws UnknownHostException if none of the server names could be resolved.
+	 */
+	ServerSelector getDomainServers(Name domain) throws UnknownHostException {
+		ServerSelector cached = domainServers.get(domain);
+		if (cached != null) {
+			return cached;
+		}
+		ServerSelector none = new ServerSelector(Collections.<InetSocketAddress>emptyList());
+		Message response;
+		try {
+			response = DnsSDFutures.await(dnsClient.query(Name.concatenate(DNSUPDATE_UDP, domain), Type.SRV));
+		} catch (NameTooLongException ex) {
+			logger.log(Level.WARNING, "Failed to lookup update DNS server", ex);
+			domainServers.put(domain, none, MIN_NEGATIVE_TTL, 1);
+			return none;
+		} catch (RuntimeException ex) {
+			if (!(DnsSDFutures.unwrap(ex) instanceof IOException)) {
+				throw ex;
+			}
+			logger.log(Level.WARNING, "Failed to lookup update DNS server: {0}", DnsSDFutures.unwrap(ex).getMessage());
+			domainServers.put(domain, none, MIN_NEGATIVE_TTL, 1);
+			return none;
+		}
+		if (response == null) {
+			return none;       // Interrupted
+		}
+		ServerSelector servers = new ServerSelector(Collections.<InetSocketAddress>emptyList());
+		long ttl = Long.MAX_VALUE;
+		UnknownHostException failure = null;
+		for (Record record : response.getSectionArray(Section.ANSWER)) {
+			if (record instanceof SRVRecord) {
+				SRVRecord srv = (SRVRecord) record;
+				ttl = Math.min(ttl, srv.getTTL());
+				if (srv.getTarget().equals(Name.root)) {
+					continue;       // Explicitly not available (RFC 2782)
+				}
+				try {
+					InetAddress addr = getAddress(response, srv.getTarget());
+					InetSocketAddress socaddr = new InetSocketAddress(addr, srv.getPort());
+					logger.log(Level.INFO, "Using DNS server {0} to perform updates.", socaddr);
+					servers.add(socaddr, srv.getPriority(), srv.getWeight());
+				} catch (UnknownHostException ex) {
+					logger.log(Level.WARNING, "Failed to resolve update DNS server {0}", srv.getTarget());
+					failure = ex;
+				}
+			}
+		}
+		if (ttl == Long.MAX_VALUE) {
+			domainServers.put(domain, servers, Math.max(dnsClient.getNegativeTimeToLive(response), MIN_NEGATIVE_TTL), 1);
+		} else if (servers.isEmpty() && failure != null) {
+			throw failure;
+		} else {
+			domainServers.put(domain, servers, ttl, 1);
+		}
+		return servers;
+	}
+
+	/**
+	 * Find the zone of a name.
+	 * @param name the name.
+	 * @return a future for the SOA record of the zone, see {@link ZoneFinder#findZone(Name)}.
+	 */
+	CompletableFuture<SOARecord> findZone(Name name) {
+		return zoneFinder.findZone(name);
+	}
+
+	/**
+	 * Get the address of the primary master of a zone.
+	 * If the primary master name fails to resolve the default servers are used
+	 * instead, for as long as a negative answer would be cached.
+	 * @param soa the SOA record of the zone.
+	 * @return the server.
+	 * @throws UnknownHostException if the default servers couldn't be resolved either.
+	 */
+	ServerSelector getPrimaryMaster(SOARecord soa) throws UnknownHostException {
+		ServerSelector cached = primaryMasters.get(soa.getHost());
+		if (cached != null) {
+			return cached;
+		}
+		try {
+			InetAddress addr = Address.getByName(soa.getHost().toString());
+			ServerSelector servers = new ServerSelector(Collections.singletonList(new InetSocketAddress(addr, SimpleResolver.DEFAULT_PORT)));
+			primaryMasters.put(soa.getHost(), servers, soa.getTTL(), 1);
+			return servers;
+		} catch (UnknownHostException ex) {
+			logger.log(Level.WARNING, "Failed to find the primary master {0} of {1}, using the default servers",
+					new Object[] { soa.getHost(), soa.getName() });
+			ServerSelector servers = getDefaultServers();
+			primaryMasters.put(soa.getHost(), servers, Math.min(soa.getTTL(), soa.getMinimum()), 1);
+			return servers;
+		}
+	}
+
+	/**
+	 * Get the default DNS servers, for when no other server can be found.
+	 * @return the servers, see {@link DnsTransport#getDefaultServers()}.
+	 * @throws UnknownHostException if a server name couldn't be resolved.
+	 */
+	synchronized ServerSelector getDefaultServers() throws UnknownHostException {
+		if (defaultServers == null) {
+			defaultServers = new ServerSelector(DnsTransport.getDefaultServers());
+		}
+		return defaultServers;
+	}
+
+	/**
+	 * Forget the servers found so far, but not the zones.
+	 * The server statistics are lost as well.
+	 */
+	void clearServers() {
+		domainServers.clear();
+		primaryMasters.clear();
+		synchronized (this) {
+			defaultServers = null;
+		}
+	}
+
+	/**
+	 * Get the address of a host, from the additional section of a response if it's there.
+	 */
+	private static InetAddress getAddress(Message response, Name host) throws UnknownHostException {
+		for (Record record : response.getSectionArray(Section.ADDITIONAL)) {
+			if (record.getName().equals(host)) {
+				if (record instanceof ARecord) {
+					return ((ARecord) record).getAddress();
+				}
+				if (record instanceof AAAARecord) {
+					return ((AAAARecord) record).getAddress();
+				}
+			}
+		}
+		return Address.getByName(host.toString());
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2011, Daniel Nilsson
+ * Released under a simplified BSD license,
+ * see README.txt for details.
+ */
+package com.github.danieln.dnssdjava;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Internal helper class for finding the zone a name belongs to, as needed for
+ * sending updates to the right zone and server (RFC 2136 section 4).
+ * <p>
+ * The zone is found by querying for the SOA record of the name. If the name is the
+ * apex of a zone the SOA record is the answer, otherwise the SOA record of the
+ * enclosing zone is in the authority section of the negative response. If neither is
+ * there the parent name is tried. The results are cached for the TTL of the SOA record.
+ * @author Daniel Nilsson
+ */
+class ZoneFinder {
+
+	/**
+	 * The maximum number of names in the cache.
+	 */
+	private static final int CACHE_SIZE = 1000;
+
+	private final DnsClient dnsClient;
+	private final ExpiringCache<Name, SOARecord> cache = new ExpiringCache<Name, SOARecord>(CACHE_SIZE);
+
+	/**
+	 * Create a new ZoneFinder.
+	 * @param dnsClient the client used to query for SOA records.
+	 */
+	ZoneFinder(DnsClient dnsClient) {
+		this.dnsClient = dnsClient;
+	}
+
+	/**
+	 * Find the zone of a name.
+	 * @param name the name.
+	 * @return a future for the SOA record of the zone, its name is the name of the zone
+	 *         and its host the primary master. Fails with an IOException if no zone was found.
+	 */
+	CompletableFuture<SOARecord> findZone(Name name) {
+		SOARecord cached = cache.get(name);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return dnsClient.query(name, Type.SOA).thenCompose(response -> {
+			SOARecord soa = getSOA(response, name);
+			if (soa != null) {
+				cache.put(name, soa, soa.getTTL(), 1);
+				return CompletableFuture.completedFuture(soa);
+			}
+			if (name.labels() <= 1) {
+				throw new CompletionException(new IOException("No zone found for " + name));
+			}
+			return findZone(new Name(name, 1)).thenApply(zone -> {
+				cache.put(name, zone, zone.getTTL(), 1);
+				return zone;
+			});
+		});
+	}
+
+	/**
+	 * Get the SOA record of the zone of a name from a response to a SOA query.
+	 * @return the SOA record, or null if the response doesn't tell.
+	 */
+	private static SOARecord getSOA(Message response, Name name) {
+		for (Record record : response.getSectionArray(Section.ANSWER)) {
+			if (record instanceof SOARecord && record.getName().equals(name)) {
+				return (SOARecord) record;
+			}
+		}
+		for (Record record : response.getSectionArray(Section.AUTHORITY)) {
+			if (record instanceof SOARecord && name.subdomain(record.getName())) {
+				return (SOARecord) record;
+			}
+		}
+		return null;
+	}
+
+}